@@ -7,7 +7,12 @@
  */
 package org.dspace.ctask.demo;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.log4j.Logger;
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
 import org.dspace.content.DCValue;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
@@ -17,8 +22,20 @@ import org.dspace.curate.Curator;
 import org.dspace.curate.Distributive;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * AbstractTranslator
@@ -27,23 +44,76 @@ import java.util.List;
  * Microsoft Translate and Google Translate. For examples of classes that extend
  * this class, see MicrosoftTranslator and GoogleTranslator
  *
+ * Requests for different target languages can be sent at the same time by
+ * setting translate.parallel.threads in translator.cfg. Every request is paced
+ * by the service's QuotaGovernor, whichever thread sends it.
+ *
+ * Values are only sent when they need translating: numbers, dates, identifiers
+ * and links are skipped (see ValueClassifier), and so are values that
+ * LanguageDetector finds are already in the target language. A value clearly
+ * written in some other language than the item's dc.language is translated
+ * from the language it is really in.
+ *
+ * Each item's outcomes go to the curator as the item is done, or can be
+ * streamed to a CSV or JSON Lines file instead (translate.report, see
+ * ReportSink).
+ *
+ * On a collection or community, items can be translated several at a time,
+ * each with its own Context, by setting translate.parallel.items (see
+ * ParallelItemRunner). Nothing about an item is kept in the task itself.
+ *
  * @author Kim Shepherd
  */
 @Distributive
-public abstract class AbstractTranslator extends AbstractCurationTask
+@ParallelItems(8)
+public abstract class AbstractTranslator extends AbstractCurationTask implements ItemCurationTask
 {
 
-    int status = Curator.CURATE_UNSET;
+    // Status of the items translated by performItem()
+    private int status = Curator.CURATE_UNSET;
 
     protected static final String PLUGIN_PREFIX = "translator";
-    protected static String authLangField = "dc.language";
-    protected static String authLang = "en";
-    protected static String[] toTranslate;
-    protected static String[] langs;
+
+    // The language of items that don't say, and the target languages, from configuration
+    private String defaultLang = "en";
+    private String[] langs;
 
     protected static Logger log = Logger.getLogger(AbstractTranslator.class);
 
-    protected List<String> results = new ArrayList<String>();
+    private static final String[] COLUMNS = {"handle", "field", "from", "to", "outcome"};
+
+    // The curator's report, and where each item's outcomes are reported in the current run
+    private ReportSink.CuratorReport curatorReport = null;
+    private ReportSink sink = null;
+
+    // The configured fields, parsed for looking up in an ItemMetadataIndex
+    private ItemMetadataIndex.Field authLangKey;
+    private ItemMetadataIndex.Field[] fields;
+
+    // Batch limits from configuration, overriding the service's own limits when set
+    private int batchSegments = 0;
+    private int batchChars = 0;
+
+    // Pooled, keep-alive HTTP client shared by every API call this task makes
+    protected HttpClient httpClient = null;
+
+    // Requests sent at the same time, and retries of requests refused with HTTP 429
+    private int threads = 1;
+    private int retries = 5;
+
+    // Items translated at a time, and between commits, on a collection or community
+    private int parallelItems = 1;
+    private int commitInterval = 100;
+
+    // Finds the real language of values, or null when detection is switched off
+    private LanguageDetector detector = null;
+    private boolean skipNonText = true;
+
+    // Sends batches when threads > 1, for the length of a run
+    private ExecutorService pool = null;
+
+    // The translation memory counts when this run started, or null if there is no memory
+    private long[] memoryCounts = null;
 
 
     @Override
@@ -52,23 +122,85 @@ public abstract class AbstractTranslator extends AbstractCurationTask
         super.init(curator, taskId);
 
         // Load configuration
-        authLang = ConfigurationManager.getProperty("default.locale");
-        authLangField = ConfigurationManager.getProperty(PLUGIN_PREFIX, "translate.field.language");
+        defaultLang = ConfigurationManager.getProperty("default.locale");
+        String authLangField = ConfigurationManager.getProperty(PLUGIN_PREFIX, "translate.field.language");
         String toTranslateStr = ConfigurationManager.getProperty(PLUGIN_PREFIX, "translate.field.targets");
         String langsStr = ConfigurationManager.getProperty(PLUGIN_PREFIX, "translate.language.targets");
-        toTranslate = toTranslateStr.split(",");
+        String[] toTranslate = toTranslateStr.split(",");
         langs = langsStr.split(",");
+        for(int i = 0; i < langs.length; i++)
+        {
+            langs[i] = langs[i].trim();
+        }
 
         if(!(toTranslate.length > 0 && langs.length > 0))
         {
             status = Curator.CURATE_ERROR;
-            results.add("Configuration error");
-            setResult(results.toString());
-            report(results.toString());
+            setResult("Configuration error");
+            report("Configuration error");
 
             return;
         }
 
+        // Parse the field names once, rather than for every item. The language field
+        // may have a * qualifier; the targets can't, as translations need a field to go in
+        ItemMetadataIndex.Field[] parsed = new ItemMetadataIndex.Field[toTranslate.length];
+        try
+        {
+            authLangKey = ItemMetadataIndex.Field.parse(authLangField);
+            for(int i = 0; i < toTranslate.length; i++)
+            {
+                parsed[i] = ItemMetadataIndex.Field.parse(toTranslate[i]);
+                if(parsed[i].isWildcard())
+                {
+                    throw new IllegalArgumentException("translate.field.targets can't use a * qualifier, " +
+                            "as translations need a field to be added to: " + toTranslate[i].trim());
+                }
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            status = Curator.CURATE_ERROR;
+            setResult("Configuration error: " + e.getMessage());
+            report("Configuration error: " + e.getMessage());
+            return;
+        }
+        fields = parsed;
+
+        batchSegments = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.batch.segments", 0);
+        batchChars = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.batch.chars", 0);
+        threads = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.parallel.threads", 1);
+        retries = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.quota.retries", 5);
+        skipNonText = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "translate.skip.nontext", true);
+        if(ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "translate.detect", true))
+        {
+            detector = new LanguageDetector(
+                    ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.detect.min.trigrams", 12), 0.3);
+        }
+
+        parallelItems = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.parallel.items", 1);
+        commitInterval = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.commit.interval", 100);
+
+        httpClient = createHttpClient();
+
+        curatorReport = new ReportSink.CuratorReport()
+        {
+            protected void report(String message)
+            {
+                AbstractTranslator.this.report(message);
+            }
+
+            protected void setResult(String result)
+            {
+                AbstractTranslator.this.setResult(result);
+            }
+
+            protected String format(String[] values)
+            {
+                return values[0] + ": " + values[4] + ", " + values[2] + " -> " + values[3] + " (" + values[1] + ")";
+            }
+        };
+
         initApi();
 
     }
@@ -76,128 +208,548 @@ public abstract class AbstractTranslator extends AbstractCurationTask
     @Override
     public int perform(DSpaceObject dso) throws IOException
     {
+        if(fields == null)
+        {
+            // init() found a configuration error
+            return Curator.CURATE_ERROR;
+        }
 
-        if(dso instanceof Item)
+        int threads = ParallelItemRunner.getThreads(getClass(), parallelItems);
+        sink = ReportSink.open(PLUGIN_PREFIX, "translate.report", taskId, COLUMNS, curatorReport);
+        startPool();
+        countMemory();
+        try
         {
-            Item item = (Item) dso;
+            if(threads > 1 && (dso instanceof Collection || dso instanceof Community))
+            {
+                ParallelItemRunner runner = new ParallelItemRunner(threads, commitInterval);
+                int runStatus = runner.run(dso, new ParallelItemRunner.ItemWork()
+                {
+                    public int perform(Item item) throws IOException
+                    {
+                        return translate(item, new ItemMetadataIndex(item));
+                    }
+                });
+                report(runner.getStatistics());
+                return runStatus;
+            }
 
-            /*
-             * We lazily set success here because our success or failure
-             * is per-field, not per-item
-             */
+            status = Curator.CURATE_UNSET;
+            distribute(dso);
+            return status;
+        }
+        finally
+        {
+            stopPool();
+            reportMemory();
+            sink.close();
+        }
+    }
 
-            status = Curator.CURATE_SUCCESS;
+    @Override
+    protected void performItem(Item item) throws IOException
+    {
+        int itemStatus = translate(item, new ItemMetadataIndex(item));
+        if(status == Curator.CURATE_UNSET || itemStatus == Curator.CURATE_ERROR)
+        {
+            status = itemStatus;
+        }
+    }
+
+    /**
+     * Translate one item. Everything about the item is kept in local variables,
+     * so items can be translated on several threads at once.
+     *
+     * @param item The item
+     * @param index A snapshot of the item's metadata
+     * @return CURATE_SUCCESS, or CURATE_ERROR if the translations couldn't be saved
+     * @throws IOException If the translation service couldn't be reached
+     */
+    private int translate(Item item, ItemMetadataIndex index) throws IOException
+    {
+        /*
+         * We lazily set success here because our success or failure
+         * is per-field, not per-item
+         */
 
-            String handle = item.getHandle();
-            log.debug("Translating metadata for " + handle);
+        int status = Curator.CURATE_SUCCESS;
+
+        String handle = item.getHandle();
+        log.debug("Translating metadata for " + handle);
+
+        String authLang = defaultLang;
+        List<DCValue> authLangs = index.get(authLangKey);
+        if(authLangs.size() > 0)
+        {
+            /* Assume the first... multiple
+              "authoritative" languages won't work */
+            authLang = authLangs.get(0).value;
+            log.debug("Authoritative language for " + handle + " is " + authLang);
+        }
 
-            DCValue[] authLangs = item.getMetadata(authLangField);
-            if(authLangs.length > 0)
+        // First work out what needs translating, in the order it will be reported
+        List<Segment> segments = new ArrayList<Segment>();
+        Map<String, String> sourceLangs = new HashMap<String, String>();
+        for(String lang : langs)
+        {
+            for(ItemMetadataIndex.Field field : fields)
             {
-                /* Assume the first... multiple
-                  "authoritative" languages won't work */
-                authLang = authLangs[0].value;
-                log.debug("Authoritative language for " + handle + " is " + authLang);
+                // First, check to see if we've already got this in the target language
+                if(index.has(field, lang))
+                {
+                    // We've already translated this, move along
+                    log.debug(handle + "already has " + field + " in " + lang + ", skipping");
+                    segments.add(new Segment(lang, field, null));
+                    continue;
+                }
+
+                // Let's carry on and get the authoritative version, then
+                List<DCValue> fieldMetadata = index.get(field, authLang);
+                if(detector != null && authLang != null && index.has(field, null))
+                {
+                    // Values with no language can be translated too, once we know what they're in
+                    fieldMetadata = new ArrayList<DCValue>(fieldMetadata);
+                    fieldMetadata.addAll(index.get(field, null));
+                }
+                for(DCValue metadataValue : fieldMetadata)
+                {
+                    Segment segment = new Segment(lang, field, metadataValue.value);
+                    segment.from = getSourceLanguage(metadataValue.value, authLang, sourceLangs);
+                    if(skipNonText && !ValueClassifier.isLinguistic(metadataValue.value))
+                    {
+                        segment.skip = "not text";
+                    }
+                    else if(LanguageDetector.sameLanguage(segment.from, lang))
+                    {
+                        segment.skip = "already in " + lang;
+                    }
+                    segments.add(segment);
+                }
             }
+        }
 
-            for(String lang : langs)
+        // Then translate everything for each target language in as few requests as we can,
+        // sending the requests for different languages at the same time when running in parallel
+        Map<String, Set<String>> texts = new LinkedHashMap<String, Set<String>>();
+        for(Segment segment : segments)
+        {
+            if(segment.value != null && segment.skip == null)
             {
-                lang = lang.trim();
-
-                for(String field : toTranslate)
+                String pair = segment.from + "|" + segment.lang;
+                if(!texts.containsKey(pair))
                 {
-                    boolean translated = false;
-                    field = field.trim();
-                    String[] fieldSegments = field.split("\\.");
-                    DCValue[] fieldMetadata = null;
-                    
-                    if(fieldSegments.length > 2) {
-                        // First, check to see if we've already got this in the target language
-                        DCValue[] checkMetadata = item.getMetadata(fieldSegments[0], fieldSegments[1], fieldSegments[2], lang);
-                        if(checkMetadata.length > 0)
-                        {
-                            // We've already translated this, move along
-                            log.debug(handle + "already has " + field + " in " + lang + ", skipping");
-                            results.add(handle + ": Skipping " + lang + " translation " + "(" + field + ")");
-                            translated = true;
-                        }
+                    texts.put(pair, new LinkedHashSet<String>());
+                }
+                texts.get(pair).add(segment.value);
+            }
+        }
 
-                        // Let's carry on and get the authoritative version, then
-                        fieldMetadata = item.getMetadata(fieldSegments[0], fieldSegments[1], fieldSegments[2], authLang);
+        Map<String, Map<String, String>> translated = new HashMap<String, Map<String, String>>();
+        List<Batch> batches = new ArrayList<Batch>();
+        for(Map.Entry<String, Set<String>> pair : texts.entrySet())
+        {
+            String[] fromTo = pair.getKey().split("\\|");
+            Map<String, String> pairTranslated = new HashMap<String, String>();
+            translated.put(pair.getKey(), pairTranslated);
+            planBatches(fromTo[0], fromTo[1], pair.getValue(), pairTranslated, batches);
+        }
+        runBatches(batches);
 
-                    }
-                    else {
-                        // First, check to see if we've already got this in the target language
-                        DCValue[] checkMetadata = item.getMetadata(fieldSegments[0], fieldSegments[1], null, lang);
-                        if(checkMetadata.length > 0)
-                        {
-                            // We've already translated this, move along
-                            log.debug(handle + "already has " + field + " in " + lang + ", skipping");
-                            results.add(handle + ": Skipping " + lang + " translation " + "(" + field + ")");
-                            translated = true;
-                        }
+        for(Segment segment : segments)
+        {
+            if(segment.value != null && segment.skip == null)
+            {
+                segment.translation = translated.get(segment.from + "|" + segment.lang).get(segment.value);
+            }
+        }
 
-                        // Let's carry on and get the authoritative version, then
-                        fieldMetadata = item.getMetadata(fieldSegments[0], fieldSegments[1], null, authLang);
+        // Finally add the translations to the item, reporting each segment's outcome
+        MetadataWriteBuffer writes = new MetadataWriteBuffer(null, 0);
+        int done = 0;
+        int skipped = 0;
+        int failed = 0;
+        for(Segment segment : segments)
+        {
+            String outcome;
+            if(segment.value == null)
+            {
+                outcome = "Skipped, already translated";
+                skipped++;
+            }
+            else if(segment.skip != null)
+            {
+                outcome = "Skipped, " + segment.skip;
+                skipped++;
+            }
+            else if(segment.translation != null && !"".equals(segment.translation))
+            {
+                // Add the new metadata
+                writes.add(item, segment.field, segment.lang, segment.translation);
+                outcome = "Translated";
+                done++;
+            }
+            else {
+                outcome = "Failed";
+                failed++;
+            }
+            sink.row(handle, segment.field.toString(), segment.from, segment.lang, outcome);
+        }
 
+        // Save all of the item's new translations with a single update
+        String summary = handle + ": " + done + " translated, " + skipped + " skipped, " + failed + " failed";
+        try {
+            writes.flush(item);
+        }
+        catch(Exception e) {
+            log.info(e.getLocalizedMessage());
+            summary += ", failed to save translations: " + e.getLocalizedMessage();
+            status = Curator.CURATE_ERROR;
+        }
+        sink.itemDone(handle, summary);
 
-                    }
+        return status;
+    }
 
-                    if(!translated && fieldMetadata.length > 0)
+    public void startRun() throws IOException
+    {
+        if(fields == null)
+        {
+            throw new IOException("Configuration error");
+        }
+        sink = ReportSink.open(PLUGIN_PREFIX, "translate.report", taskId, COLUMNS, curatorReport);
+        startPool();
+        countMemory();
+    }
+
+    public int curateItem(Item item, ItemMetadataIndex index) throws IOException
+    {
+        return translate(item, index);
+    }
+
+    public boolean changesMetadata()
+    {
+        return true;
+    }
+
+    public void finishRun() throws IOException
+    {
+        stopPool();
+        reportMemory();
+        sink.close();
+    }
+
+    protected abstract void initApi();
+
+    /**
+     * Work out the language a value is really written in. The item's authoritative
+     * language is used unless the value is clearly in some other language.
+     *
+     * @param value The value
+     * @param authLang The item's authoritative language
+     * @param sourceLangs Languages already worked out for this item's values
+     * @return The source language to translate from
+     */
+    private String getSourceLanguage(String value, String authLang, Map<String, String> sourceLangs)
+    {
+        if(detector == null)
+        {
+            return authLang;
+        }
+        String lang = sourceLangs.get(value);
+        if(lang == null)
+        {
+            lang = detector.detect(value);
+            if(lang == null || LanguageDetector.sameLanguage(lang, authLang))
+            {
+                lang = authLang;
+            }
+            else
+            {
+                log.debug("Detected " + lang + " rather than " + authLang + " for \"" + value + "\"");
+            }
+            sourceLangs.put(value, lang);
+        }
+        return lang;
+    }
+
+    /**
+     * Create the HTTP client used for API calls. Connections are pooled and kept
+     * alive between calls, so only the first call to a service pays for connection
+     * and TLS setup. Pool size and timeouts come from translator.cfg.
+     *
+     * @return A pooled HTTP client
+     */
+    private static HttpClient createHttpClient()
+    {
+        MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = manager.getParams();
+        params.setMaxTotalConnections(ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.http.connections", 10));
+        params.setDefaultMaxConnectionsPerHost(ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.http.connections", 10));
+        params.setConnectionTimeout(ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.http.timeout.connect", 10000));
+        params.setSoTimeout(ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.http.timeout.read", 30000));
+        return new HttpClient(manager);
+    }
+
+    protected abstract String translateText(String from, String to, String text) throws IOException;
+
+    /**
+     * Translate several pieces of text at once. Services that can translate many
+     * texts in a single request should override this, along with
+     * getMaxBatchSegments() and getMaxBatchChars(). By default each text is
+     * translated separately with translateText().
+     *
+     * @param from The source language
+     * @param to The target language
+     * @param texts The texts to translate
+     * @return The translations, in the same order as the texts, with null for any that failed
+     * @throws IOException If the translation service couldn't be reached
+     */
+    protected List<String> translateBatch(String from, String to, List<String> texts) throws IOException
+    {
+        List<String> translations = new ArrayList<String>(texts.size());
+        for(String text : texts)
+        {
+            translations.add(translateText(from, to, text));
+        }
+        return translations;
+    }
+
+    /**
+     * @return The most texts the service accepts in one translateBatch() request
+     */
+    protected int getMaxBatchSegments()
+    {
+        return 1;
+    }
+
+    /**
+     * @return The most characters the service accepts in one translateBatch() request
+     */
+    protected int getMaxBatchChars()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Work out which texts need sending to the translation service. Texts found in
+     * the shared TranslationMemory don't cost an API call and go straight into the
+     * translated map. The rest are split into batches as large as the service allows.
+     *
+     * @param from The source language
+     * @param to The target language
+     * @param texts The texts to translate, without repeats
+     * @param translated The map each text's translation will be put in
+     * @param batches The list to add batches to
+     */
+    private void planBatches(String from, String to, Set<String> texts, Map<String, String> translated,
+                             List<Batch> batches)
+    {
+        TranslationMemory memory = TranslationMemory.getInstance();
+        int maxSegments = (batchSegments > 0) ? batchSegments : getMaxBatchSegments();
+        int maxChars = (batchChars > 0) ? batchChars : getMaxBatchChars();
+        Batch batch = null;
+        for(String text : texts)
+        {
+            String translatedText = (memory != null) ? memory.get(from, to, text) : null;
+            if(translatedText != null)
+            {
+                translated.put(text, translatedText);
+                continue;
+            }
+
+            if(batch == null || batch.texts.size() >= maxSegments || batch.length + text.length() > maxChars)
+            {
+                batch = new Batch(from, to, translated);
+                batches.add(batch);
+            }
+            batch.texts.add(text);
+            batch.length += text.length();
+        }
+    }
+
+    /**
+     * Send batches to the translation service, on the run's translation pool when
+     * more than one thread is configured. Translations are merged in the order the
+     * batches were planned, whatever order they come back in, and are saved to the
+     * TranslationMemory.
+     *
+     * @param batches The batches to send
+     * @throws IOException If the translation service couldn't be reached
+     */
+    private void runBatches(List<Batch> batches) throws IOException
+    {
+        List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>(batches.size());
+        ExecutorService executor = (batches.size() > 1) ? pool : null;
+        for(Batch batch : batches)
+        {
+            FutureTask<List<String>> future = new FutureTask<List<String>>(batch);
+            if(executor != null)
+            {
+                executor.execute(future);
+            }
+            else
+            {
+                future.run();
+            }
+            futures.add(future);
+        }
+
+        TranslationMemory memory = TranslationMemory.getInstance();
+        try
+        {
+            for(int b = 0; b < batches.size(); b++)
+            {
+                Batch batch = batches.get(b);
+                List<String> translations = futures.get(b).get();
+                for(int i = 0; i < batch.texts.size() && i < translations.size(); i++)
+                {
+                    String translatedText = translations.get(i);
+                    if(translatedText != null && !"".equals(translatedText))
                     {
-                        for(DCValue metadataValue : fieldMetadata) {
-                            String value = metadataValue.value;
-                            String translatedText = translateText(authLang, lang, value);
-                            if(translatedText != null && !"".equals(translatedText))
-                            {
-                                // Add the new metadata
-                                if(fieldSegments.length > 2) {
-                                    item.addMetadata(fieldSegments[0], fieldSegments[1], fieldSegments[2], lang, translatedText);
-                                }
-                                else {
-                                    item.addMetadata(fieldSegments[0], fieldSegments[1], null, lang, translatedText);
-                                }
-
-                                try {
-                                    item.update();
-                                    results.add(handle + ": Translated " + authLang + " -> " + lang + " (" + field + ")");
-                                }
-                                catch(Exception e) {
-                                    log.info(e.getLocalizedMessage());
-                                    status = Curator.CURATE_ERROR;
-                                }
-
-                            }
-                            else {
-                                results.add(handle + ": Failed translation of " + authLang + " -> " + lang + "(" + field + ")");
-                            }
+                        batch.translated.put(batch.texts.get(i), translatedText);
+                        if(memory != null)
+                        {
+                            memory.put(batch.from, batch.to, batch.texts.get(i), translatedText);
                         }
                     }
                 }
             }
         }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for translations");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Translation failed: " + e.getCause());
+        }
+        finally
+        {
+            // Don't leave anything running if one batch has failed
+            for(Future<List<String>> future : futures)
+            {
+                future.cancel(true);
+            }
+        }
+    }
 
-        processResults();
-        return status;
+    /**
+     * Start the pool batches are sent on for this run, if more than one thread is configured
+     */
+    private void startPool()
+    {
 
+        if(threads > 1)
+        {
+            pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("translator"));
+            log.debug("Translation pool started with " + threads + " threads");
+        }
     }
 
-    protected abstract void initApi();
+    private void stopPool()
+    {
+        if(pool != null)
+        {
+            pool.shutdown();
+            pool = null;
+        }
+    }
 
-    protected abstract String translateText(String from, String to, String text) throws IOException;
+    /**
+     * Note the translation memory's counts at the start of a run
+     */
+    private void countMemory()
+    {
+        TranslationMemory memory = TranslationMemory.getInstance();
+        memoryCounts = (memory != null) ? memory.getCounts() : null;
+    }
 
-    private void processResults() throws IOException
+    /**
+     * Report how much the translation memory saved in this run
+     */
+    private void reportMemory()
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Translation report: \n----------------\n");
-        for(String result : results)
+        TranslationMemory memory = TranslationMemory.getInstance();
+        if(memory != null && memoryCounts != null)
         {
-            sb.append(result).append("\n");
+            report(memory.getStatistics(memoryCounts));
         }
-        setResult(sb.toString());
-        report(sb.toString());
+        memoryCounts = null;
+    }
 
+    /**
+     * A single value to translate into a target language, or a field that is
+     * being skipped because it already has a translation (value is null).
+     * Values that need no translation have the reason in skip.
+     */
+    private static class Segment
+    {
+        private final String lang;
+        private final ItemMetadataIndex.Field field;
+        private final String value;
+        private String from;
+        private String skip;
+        private String translation;
+
+        private Segment(String lang, ItemMetadataIndex.Field field, String value)
+        {
+            this.lang = lang;
+            this.field = field;
+            this.value = value;
+        }
     }
 
-}
+    /**
+     * Texts to send to the translation service in one translateBatch() call.
+     * Calls are paced by the service's QuotaGovernor, and a call refused with
+     * HTTP 429 is retried after the governor's backoff.
+     */
+    private class Batch implements Callable<List<String>>
+    {
+        private final String from;
+        private final String to;
+        private final Map<String, String> translated;
+        private final List<String> texts = new ArrayList<String>();
+        private int length = 0;
+
+        private Batch(String from, String to, Map<String, String> translated)
+        {
+            this.from = from;
+            this.to = to;
+            this.translated = translated;
+        }
 
+        public List<String> call() throws IOException, InterruptedException
+        {
+            QuotaGovernor governor = QuotaGovernor.getInstance(AbstractTranslator.this.getClass().getName());
+            for(int attempt = 0; ; attempt++)
+            {
+                governor.acquire(length);
+                try
+                {
+                    log.debug("Translating a batch of " + texts.size() + " texts from " + from + " to " + to);
+                    List<String> translations = translateBatch(from, to, texts);
+                    governor.succeeded();
+                    return translations;
+                }
+                catch(RateLimitedException e)
+                {
+                    governor.throttled(e.getRetryAfter());
+                    if(attempt >= retries)
+                    {
+                        // Give up on these texts, they will be reported as failed translations
+                        log.info("Still rate limited after " + retries + " retries, giving up on "
+                                + texts.size() + " texts from " + from + " to " + to);
+                        return new ArrayList<String>();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -11,12 +11,16 @@ import org.apache.log4j.Logger;
 import org.dspace.content.*;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * A basic link checker that is designed to be extended. By default this link checker
@@ -26,16 +30,31 @@ import java.util.List;
  * This link checker can be enhanced by extending this class, and overriding the
  * getURLs and checkURL methods.
  *
+ * The URLs of an item are checked concurrently on the shared LinkCheckExecutor pool,
+ * but results are always reported in the order getURLs returned them. When run over a
+ * collection or community with linkchecker.scheduler = true, the URLs of a window of
+ * items are pooled and checked host by host at a polite rate, see LinkScheduler.
+ *
  * @author Stuart Lewis
  */
 
-public class BasicLinkChecker extends AbstractCurationTask {
+@Distributive
+public class BasicLinkChecker extends AbstractCurationTask implements ItemCurationTask {
+
+    // The combined status of all items checked when curating a collection or community
+    private int runStatus = Curator.CURATE_UNSET;
+
+    // The scheduler batching item URLs, when in scheduler mode
+    private LinkScheduler scheduler = null;
 
-    // The status of the link checking of this item
-    private int status = Curator.CURATE_UNSET;
+    // The link status cache counts when this run started
+    private long[] cacheCounts = null;
 
-    // The results of link checking this item
-    private List<String> results = null;
+    // The persistent link state, open for the length of a run, or null if it is switched off
+    private LinkStateStore store = null;
+
+    // A response code already fetched for the URL being checked on this thread, see check(String, int)
+    private final ThreadLocal<KnownStatus> known = new ThreadLocal<KnownStatus>();
 
     // The log4j logger for this class
     private static Logger log = Logger.getLogger(BasicLinkChecker.class);
@@ -51,42 +70,172 @@ public class BasicLinkChecker extends AbstractCurationTask {
     @Override
     public int perform(DSpaceObject dso) throws IOException
     {
-        // The results that we'll return
-        StringBuilder results = new StringBuilder();
-
-        // Unless this is  an item, we'll skip this item
-        status = Curator.CURATE_SKIP;
-        if (dso instanceof Item)
+        cacheCounts = getCache().getCounts();
+        store = LinkStateStore.open();
+        try
         {
-            Item item = (Item)dso;
-
-            // Get the URLs
-            List<String> urls = getURLs(item);
-
-            // Assume skip until we hit a URL to check
-            status = Curator.CURATE_SKIP;
-            results.append("Item: ").append(getItemHandle(item)).append("\n");
-
-            // Check the URLs
-            for (String url : urls)
+            if (dso instanceof Item)
             {
-                boolean ok = checkURL(url, results);
+                return checkItem((Item)dso);
+            }
 
-                if(ok)
+            // A collection or community: check each of its items, either one by one or
+            // batched through the host scheduler
+            runStatus = Curator.CURATE_SKIP;
+            if (LinkScheduler.isEnabled())
+            {
+                scheduler = new LinkScheduler(this);
+                try
                 {
-                    status = Curator.CURATE_SUCCESS;
+                    distribute(dso);
+                    scheduler.finish();
                 }
-                else
+                finally
                 {
-                    status = Curator.CURATE_FAIL;
+                    scheduler = null;
                 }
             }
+            else
+            {
+                distribute(dso);
+            }
+
+            report(getCache().getStatistics(cacheCounts));
+            return runStatus;
+        }
+        finally
+        {
+            closeStore();
+        }
+    }
+
+    @Override
+    protected void performItem(Item item) throws SQLException, IOException
+    {
+        if (scheduler != null)
+        {
+            scheduler.add(getItemHandle(item), getURLs(item));
+        }
+        else
+        {
+            checkItem(item);
+        }
+    }
+
+    public void startRun()
+    {
+        runStatus = Curator.CURATE_SKIP;
+        cacheCounts = getCache().getCounts();
+        store = LinkStateStore.open();
+    }
+
+    public int curateItem(Item item, ItemMetadataIndex index)
+    {
+        return checkItem(item);
+    }
+
+    public boolean changesMetadata()
+    {
+        return false;
+    }
+
+    public void finishRun()
+    {
+        closeStore();
+        report(getCache().getStatistics(cacheCounts));
+    }
+
+    /**
+     * Write out and close the link state store at the end of a run
+     */
+    private void closeStore()
+    {
+        if (store != null)
+        {
+            store.close();
+            store = null;
+        }
+    }
+
+    /**
+     * Check all the URLs of a single item and report on them
+     *
+     * @param item The item to check
+     * @return The curation task status of the checking
+     */
+    private int checkItem(Item item)
+    {
+        // The results that we'll return
+        StringBuilder results = new StringBuilder();
+
+        // Get the URLs
+        List<String> urls = getURLs(item);
+
+        results.append("Item: ").append(getItemHandle(item)).append("\n");
+
+        // Check the URLs concurrently, then collect the results in their original order
+        int itemStatus = collectChecks(urls, submitChecks(urls), results);
+        reportItem(results.toString(), itemStatus);
+
+        return itemStatus;
+    }
+
+    /**
+     * Wait for the checks of an item's URLs and append their results in order
+     *
+     * @param urls The URLs of the item
+     * @param checks The pending checks, one per URL
+     * @param results The report to append to
+     * @return The curation task status for the item
+     */
+    int collectChecks(List<String> urls, List<Future<URLCheck>> checks, StringBuilder results)
+    {
+        // Assume skip until we hit a URL to check
+        int itemStatus = Curator.CURATE_SKIP;
+        for (int i = 0; i < urls.size(); i++)
+        {
+            URLCheck check = getCheck(urls.get(i), checks.get(i));
+            results.append(check.report);
+
+            if(check.ok)
+            {
+                itemStatus = Curator.CURATE_SUCCESS;
+            }
+            else
+            {
+                itemStatus = Curator.CURATE_FAIL;
+            }
         }
+        return itemStatus;
+    }
 
-        setResult(results.toString());
-        report(results.toString());
+    /**
+     * Report the results of checking an item
+     *
+     * @param results The report for the item
+     * @param itemStatus The curation task status for the item
+     */
+    void reportItem(String results, int itemStatus)
+    {
+        // Any failure fails the run; otherwise any success makes it a success
+        if (itemStatus == Curator.CURATE_FAIL || runStatus == Curator.CURATE_FAIL)
+        {
+            runStatus = Curator.CURATE_FAIL;
+        }
+        else if (itemStatus == Curator.CURATE_SUCCESS)
+        {
+            runStatus = Curator.CURATE_SUCCESS;
+        }
 
-        return status;
+        // Save what we've learned so far, in case the run doesn't finish
+        LinkStateStore store = this.store;
+        if (store != null)
+        {
+            store.flush();
+        }
+
+        setResult(results);
+        report(results);
     }
 
     /**
@@ -117,7 +266,19 @@ public class BasicLinkChecker extends AbstractCurationTask {
     {
         // Link check the URL
         int httpStatus = getResponseStatus(url);
+        return reportStatus(url, httpStatus, results);
+    }
 
+    /**
+     * Report the response code of a URL
+     *
+     * @param url The URL that was checked
+     * @param httpStatus Its response code
+     * @param results Where to write the report
+     * @return If the URL was OK or not
+     */
+    private static boolean reportStatus(String url, int httpStatus, StringBuilder results)
+    {
         if ((httpStatus >= 200) && (httpStatus < 300))
         {
             results.append(" - " + url + " = " + httpStatus + " - OK\n");
@@ -130,30 +291,156 @@ public class BasicLinkChecker extends AbstractCurationTask {
         }
     }
 
+    /**
+     * Submit a check of each URL to the shared link check pool
+     *
+     * @param urls The URLs to check
+     * @return One future per URL, in the same order as the URLs
+     */
+    private List<Future<URLCheck>> submitChecks(List<String> urls)
+    {
+        LinkCheckExecutor executor = LinkCheckExecutor.getInstance();
+        List<Future<URLCheck>> checks = new ArrayList<Future<URLCheck>>(urls.size());
+        for (final String url : urls)
+        {
+            checks.add(executor.submit(url, new Callable<URLCheck>()
+            {
+                public URLCheck call()
+                {
+                    return check(url);
+                }
+            }));
+        }
+        return checks;
+    }
+
+    /**
+     * Check a single URL. Each check reports into its own buffer so that output
+     * from concurrent checks can't interleave.
+     *
+     * @param url The URL to check
+     * @return The result of the check
+     */
+    URLCheck check(String url)
+    {
+        StringBuilder report = new StringBuilder();
+        boolean ok = checkURL(url, report);
+        return new URLCheck(ok, report);
+    }
+
+    /**
+     * Check a URL whose response code is already known. It goes through checkURL()
+     * as any other check does, but getResponseStatus() gives it the known code
+     * instead of asking the server again.
+     *
+     * @param url The URL that was checked
+     * @param status Its response code
+     * @return The result of the check
+     */
+    URLCheck check(String url, int status)
+    {
+        known.set(new KnownStatus(url, status));
+        try
+        {
+            return check(url);
+        }
+        finally
+        {
+            known.remove();
+        }
+    }
+
+    /**
+     * Wait for a submitted check to finish
+     *
+     * @param url The URL that was checked
+     * @param check The pending check
+     * @return The result of the check, or a failure if the check could not complete
+     */
+    private URLCheck getCheck(String url, Future<URLCheck> check)
+    {
+        try
+        {
+            return check.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            check.cancel(true);
+            return new URLCheck(false, new StringBuilder(" - " + url + " = 0 - FAILED (interrupted)\n"));
+        }
+        catch (ExecutionException ee)
+        {
+            log.info("Link check of " + url + " failed: " + ee.getCause());
+            return new URLCheck(false, new StringBuilder(" - " + url + " = 0 - FAILED\n"));
+        }
+        catch (CancellationException ce)
+        {
+            return new URLCheck(false, new StringBuilder(" - " + url + " = 0 - FAILED (not checked)\n"));
+        }
+    }
+
     /**
      * Get the response code for a URL.  If something goes wrong opening the URL, a
      * response code of 0 is returned.
      *
+     * The result is shared with every other item that links to the same URL, for
+     * as long as LinkStatusCache keeps it. If the LinkStateStore is switched on, a recent
+     * result from a previous run is used instead of checking the URL again.
+     *
      * @param url The url to open
      * @return The HTTP response code (e.g. 200 / 301 / 404 / 500)
      */
-    protected int getResponseStatus(String url)
+    protected int getResponseStatus(final String url)
     {
-        try
+        KnownStatus probed = known.get();
+        if (probed != null && probed.url.equals(url))
         {
-            URL theURL = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection)theURL.openConnection();
-            int code = connection.getResponseCode();
-            connection.disconnect();
-
-            return code;
+            return probed.status;
+        }
 
-        } catch (IOException ioe)
+        final LinkStateStore store = this.store;
+        return getCache().getStatus(url, new Callable<Integer>()
         {
-            // Must be a bad URL
-            log.debug("Bad link: " + ioe.getMessage());
-            return 0;
-        }
+            public Integer call()
+            {
+                String key = LinkStatusCache.normalise(url);
+                if (store != null)
+                {
+                    Integer status = store.getFreshStatus(key);
+                    if (status != null)
+                    {
+                        return status;
+                    }
+                }
+
+                int status;
+                try
+                {
+                    status = LinkProber.getInstance().probe(url);
+
+                } catch (IOException ioe)
+                {
+                    // Must be a bad URL
+                    log.debug("Bad link: " + ioe.getMessage());
+                    status = 0;
+                }
+
+                if (store != null && !LinkStatusCache.isThrottled(status))
+                {
+                    store.record(key, status);
+                }
+                return Integer.valueOf(status);
+            }
+        });
+    }
+
+    /**
+     * @return The link status cache shared by all link checkers
+     */
+    LinkStatusCache getCache()
+    {
+        return LinkStatusCache.getInstance();
     }
 
     /**
@@ -162,10 +449,40 @@ public class BasicLinkChecker extends AbstractCurationTask {
      * @param item The item to get a description of
      * @return The handle, or in workflow
      */
-    private static String getItemHandle(Item item)
+    static String getItemHandle(Item item)
     {
         String handle = item.getHandle();
         return (handle != null) ? handle: " in workflow";
     }
 
+    /**
+     * A URL's response code, fetched before the URL is reported on
+     */
+    private static class KnownStatus
+    {
+        private final String url;
+        private final int status;
+
+        private KnownStatus(String url, int status)
+        {
+            this.url = url;
+            this.status = status;
+        }
+    }
+
+    /**
+     * The outcome of checking a single URL
+     */
+    static class URLCheck
+    {
+        private final boolean ok;
+        private final StringBuilder report;
+
+        private URLCheck(boolean ok, StringBuilder report)
+        {
+            this.ok = ok;
+            this.report = report;
+        }
+    }
+
 }
@@ -0,0 +1,420 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BitstreamPolicyCursor
+ * ---------------------
+ * Lists the READ policies of every bitstream in the archived items of a
+ * collection or community, with one query per batch of collections instead of
+ * a policy lookup per bitstream. Items, bundles, bitstreams, handles and READ
+ * policies are joined in the database and the rows are streamed back in item
+ * order through a cursor, so memory use doesn't depend on the collection size.
+ * The one exception is a community with more collections than fit in one query:
+ * the IDs of the items already listed are then kept, so that an item mapped
+ * into collections of different batches is only listed once.
+ *
+ * There is one row per policy: the bitstream's own READ policies, then its
+ * bundle's, so that an EffectiveAccessEvaluator can decide whether each
+ * bitstream is public. Bitstreams without any READ policies aren't listed.
+ *
+ * For incremental audits the rows can be limited to items changed since a
+ * watermark: items modified since a given time, with a bundle or bitstream
+ * policy newer than a given policy ID, or with a bundle or bitstream READ
+ * policy that has started or ended since the last audit. A policy edited in
+ * place keeps its ID and has no modification time, so the edit isn't seen
+ * (see PolicyAuditState).
+ *
+ * @author Kim Shepherd
+ */
+public class BitstreamPolicyCursor
+{
+    private static final int READ = Constants.getActionID("READ");
+
+    // Collections per query, keeping IN lists within what every database accepts
+    private static final int COLLECTIONS_PER_QUERY = 500;
+    // Rows fetched from the database at a time
+    private static final int FETCH_SIZE = 1000;
+    // Policy dates have no time of day, so look a day further back for ones that have passed
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    // A policy added since the watermark, or a READ policy that has come into or gone out of force since the last audit
+    private static final String POLICY_CHANGED = "(crp.policy_id > ? OR (crp.action_id = ? AND (" +
+            "(crp.start_date > ? AND crp.start_date <= ?) OR (crp.end_date > ? AND crp.end_date <= ?))))";
+
+    private final Context c;
+    private final String[] bundles;
+    private final List<Integer> collections;
+    private int nextCollection = 0;
+
+    // Only items changed since these, when set
+    private int sincePolicyID = -1;
+    private Timestamp sinceModified = null;
+    private Timestamp sinceAudit = null;
+    private Timestamp untilAudit = null;
+
+    private PreparedStatement statement = null;
+    private ResultSet rows = null;
+
+    // When the collections take more than one query, the items listed by earlier
+    // queries, and those listed so far by this one, so no item is listed twice
+    private Set<Integer> listed = null;
+    private Set<Integer> listing = null;
+
+    /**
+     * @param c The current context, which must not be committed while the cursor is open
+     * @param container A Collection or Community
+     * @param bundles The names of the bundles to look in
+     * @throws SQLException If the collections couldn't be listed
+     */
+    public BitstreamPolicyCursor(Context c, DSpaceObject container, String[] bundles) throws SQLException
+    {
+        this.c = c;
+        this.bundles = bundles;
+        this.collections = listCollections(container);
+    }
+
+    /**
+     * @param container A Collection or Community
+     * @return The IDs of the collection, or of every collection in the community and its subcommunities
+     * @throws SQLException If the collections couldn't be listed
+     */
+    static List<Integer> listCollections(DSpaceObject container) throws SQLException
+    {
+        Set<Integer> ids = new LinkedHashSet<Integer>();
+        addCollections(container, ids);
+        return new ArrayList<Integer>(ids);
+    }
+
+    private static void addCollections(DSpaceObject dso, Set<Integer> ids) throws SQLException
+    {
+        if (dso instanceof Collection)
+        {
+            ids.add(dso.getID());
+        }
+        else if (dso instanceof Community)
+        {
+            Community community = (Community) dso;
+            for (Collection collection : community.getCollections())
+            {
+                ids.add(collection.getID());
+            }
+            for (Community sub : community.getSubcommunities())
+            {
+                addCollections(sub, ids);
+            }
+        }
+    }
+
+    /**
+     * Only list items changed since a watermark. Call before reading any rows.
+     *
+     * @param policyID Include items with a bundle or bitstream policy with a higher ID than this
+     * @param modified Include items modified after this
+     * @param lastAudit When the last audit started: include items with a READ policy whose start or end date has passed since
+     * @param audit When this audit started
+     */
+    public void setChangedSince(int policyID, Date modified, Date lastAudit, Date audit)
+    {
+        this.sincePolicyID = policyID;
+        this.sinceModified = new Timestamp(modified.getTime());
+        this.sinceAudit = new Timestamp(lastAudit.getTime() - DAY);
+        this.untilAudit = new Timestamp(audit.getTime());
+    }
+
+    /**
+     * @return The IDs of items changed since the watermark, archived or not, whatever
+     *         their policies, so that items that are no longer public can be found
+     * @throws SQLException If a query failed
+     */
+    public List<Integer> getChangedItems() throws SQLException
+    {
+        return listItems(true);
+    }
+
+    /**
+     * @return The IDs of every item in the collections, archived or not
+     * @throws SQLException If a query failed
+     */
+    public Set<Integer> getItems() throws SQLException
+    {
+        return new HashSet<Integer>(listItems(false));
+    }
+
+    private List<Integer> listItems(boolean changedOnly) throws SQLException
+    {
+        // An item mapped into collections in different batches is found by both
+        Set<Integer> found = new LinkedHashSet<Integer>();
+        for (int start = 0; start < collections.size(); start += COLLECTIONS_PER_QUERY)
+        {
+            List<Integer> batch = collections.subList(start, Math.min(collections.size(), start + COLLECTIONS_PER_QUERY));
+            List<Object> params = new ArrayList<Object>(batch);
+            String sql = "SELECT DISTINCT i.item_id FROM collection2item c2i " +
+                    "JOIN item i ON i.item_id = c2i.item_id " +
+                    "WHERE c2i.collection_id IN (" + placeholders(batch.size()) + ")" +
+                    (changedOnly ? getChangedClause(params) : "");
+
+            PreparedStatement items = prepare(sql, params);
+            try
+            {
+                items.setFetchSize(FETCH_SIZE);
+                ResultSet ids = items.executeQuery();
+                while (ids.next())
+                {
+                    found.add(ids.getInt(1));
+                }
+                ids.close();
+            }
+            finally
+            {
+                items.close();
+            }
+        }
+        return new ArrayList<Integer>(found);
+    }
+
+    /**
+     * @param params The query parameters, which the clause's parameters are added to
+     * @return A condition limiting the items to those changed since the watermark, if one is set
+     */
+    private String getChangedClause(List<Object> params)
+    {
+        if (sinceModified == null)
+        {
+            return "";
+        }
+        params.add(sinceModified);
+        params.add(Constants.BUNDLE);
+        addPolicyChangedParams(params);
+        params.add(Constants.BITSTREAM);
+        addPolicyChangedParams(params);
+        return " AND (i.last_modified > ? OR i.item_id IN (" +
+                "SELECT ci2b.item_id FROM item2bundle ci2b " +
+                "JOIN resourcepolicy crp ON crp.resource_type_id = ? AND crp.resource_id = ci2b.bundle_id " +
+                "WHERE " + POLICY_CHANGED + " " +
+                "UNION SELECT ci2b.item_id FROM item2bundle ci2b " +
+                "JOIN bundle2bitstream cb2b ON cb2b.bundle_id = ci2b.bundle_id " +
+                "JOIN resourcepolicy crp ON crp.resource_type_id = ? AND crp.resource_id = cb2b.bitstream_id " +
+                "WHERE " + POLICY_CHANGED + "))";
+    }
+
+    private void addPolicyChangedParams(List<Object> params)
+    {
+        params.add(sincePolicyID);
+        params.add(READ);
+        params.add(sinceAudit);
+        params.add(untilAudit);
+        params.add(sinceAudit);
+        params.add(untilAudit);
+    }
+
+    /**
+     * Move to the next row
+     *
+     * @return false when there are no more rows
+     * @throws SQLException If a query failed
+     */
+    public boolean next() throws SQLException
+    {
+        while (true)
+        {
+            while (rows == null || !rows.next())
+            {
+                close();
+                if (nextCollection >= collections.size() || bundles.length == 0)
+                {
+                    return false;
+                }
+                openNext();
+            }
+            if (listed == null)
+            {
+                return true;
+            }
+
+            // Skip items already listed for an earlier batch of collections
+            Integer itemID = Integer.valueOf(getItemID());
+            if (!listed.contains(itemID))
+            {
+                listing.add(itemID);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The item's handle, or null if it hasn't got one
+     * @throws SQLException If the row couldn't be read
+     */
+    public String getHandle() throws SQLException
+    {
+        return rows.getString("handle");
+    }
+
+    public int getItemID() throws SQLException
+    {
+        return rows.getInt("item_id");
+    }
+
+    public int getBitstreamID() throws SQLException
+    {
+        return rows.getInt("bitstream_id");
+    }
+
+    public String getBitstreamName() throws SQLException
+    {
+        return rows.getString("name");
+    }
+
+    /**
+     * @return Whether this row's policy is on the bundle rather than the bitstream
+     * @throws SQLException If the row couldn't be read
+     */
+    public boolean isBundlePolicy() throws SQLException
+    {
+        return rows.getInt("resource_type_id") == Constants.BUNDLE;
+    }
+
+    /**
+     * @return The policy's group, or -1 if it names an e-person
+     * @throws SQLException If the row couldn't be read
+     */
+    public int getGroupID() throws SQLException
+    {
+        int group = rows.getInt("epersongroup_id");
+        return rows.wasNull() ? -1 : group;
+    }
+
+    public Date getStartDate() throws SQLException
+    {
+        return rows.getDate("start_date");
+    }
+
+    public Date getEndDate() throws SQLException
+    {
+        return rows.getDate("end_date");
+    }
+
+    /**
+     * Close the current query. The cursor may be abandoned after this.
+     */
+    public void close()
+    {
+        try
+        {
+            if (rows != null)
+            {
+                rows.close();
+            }
+            if (statement != null)
+            {
+                statement.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            // Nothing more to read from it either way
+        }
+        rows = null;
+        statement = null;
+    }
+
+    private void openNext() throws SQLException
+    {
+        int end = Math.min(collections.size(), nextCollection + COLLECTIONS_PER_QUERY);
+        List<Integer> batch = collections.subList(nextCollection, end);
+        nextCollection = end;
+        if (collections.size() > COLLECTIONS_PER_QUERY)
+        {
+            if (listed == null)
+            {
+                listed = new HashSet<Integer>();
+                listing = new HashSet<Integer>();
+            }
+            listed.addAll(listing);
+            listing.clear();
+        }
+
+        // The same bitstreams twice, joined to their own policies and then to their bundles'
+        List<Object> params = new ArrayList<Object>();
+        String sql = select(batch, Constants.BITSTREAM, "bs.bitstream_id", params) + " UNION ALL " +
+                select(batch, Constants.BUNDLE, "b.bundle_id", params) +
+                " ORDER BY item_id, bitstream_id, resource_type_id";
+        statement = prepare(sql, params);
+
+        // With autocommit off, as it is in a DSpace context, this streams rather than loading every row
+        statement.setFetchSize(FETCH_SIZE);
+        rows = statement.executeQuery();
+    }
+
+    /**
+     * @return One half of the query, joining bitstreams to the policies of the given resource
+     */
+    private String select(List<Integer> batch, int resourceType, String resourceID, List<Object> params)
+    {
+        params.add(resourceType);
+        params.add(Constants.ITEM);
+        params.addAll(batch);
+        params.addAll(Arrays.asList(bundles));
+        params.add(READ);
+
+        String select = "SELECT h.handle, i.item_id, bs.bitstream_id, bs.name, " +
+                "rp.resource_type_id, rp.epersongroup_id, rp.start_date, rp.end_date " +
+                "FROM item i " +
+                "JOIN item2bundle i2b ON i2b.item_id = i.item_id " +
+                "JOIN bundle b ON b.bundle_id = i2b.bundle_id " +
+                "JOIN bundle2bitstream b2b ON b2b.bundle_id = b.bundle_id " +
+                "JOIN bitstream bs ON bs.bitstream_id = b2b.bitstream_id " +
+                "JOIN resourcepolicy rp ON rp.resource_type_id = ? AND rp.resource_id = %s " +
+                "LEFT JOIN handle h ON h.resource_type_id = ? AND h.resource_id = i.item_id " +
+                "WHERE i.item_id IN (SELECT c2i.item_id FROM collection2item c2i " +
+                "WHERE c2i.collection_id IN (" + placeholders(batch.size()) + ")) " +
+                "AND i.in_archive = '1' " +
+                "AND b.name IN (" + placeholders(bundles.length) + ") " +
+                "AND rp.action_id = ?";
+        return String.format(select, resourceID) + getChangedClause(params);
+    }
+
+    private PreparedStatement prepare(String sql, List<Object> params) throws SQLException
+    {
+        PreparedStatement prepared = c.getDBConnection().prepareStatement(sql);
+        for (int i = 0; i < params.size(); i++)
+        {
+            prepared.setObject(i + 1, params.get(i));
+        }
+        return prepared;
+    }
+
+    static String placeholders(int n)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++)
+        {
+            sb.append((i == 0) ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+}
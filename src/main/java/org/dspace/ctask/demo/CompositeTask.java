@@ -0,0 +1,326 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.PluginManager;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.CurationTask;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CompositeTask
+ * -------------
+ * Runs several curation tasks in one pass over a collection or community:
+ * each item is loaded once and given to every task in turn, instead of each
+ * task loading every item, its bundles and its metadata again.
+ *
+ * The tasks are listed by task ID, in the order they are to run, in
+ * [dspace]/config/modules/composite.cfg:
+ *
+ * composite.tasks.[task ID] = exif, linkchecker, policychecker, translate
+ *
+ * where [task ID] is the name the composite itself is given in curate.cfg, so
+ * several composites can be configured; composite.tasks is used when there is
+ * no list for the ID.
+ *
+ * Tasks implementing ItemCurationTask share the item and a snapshot of its
+ * metadata (an ItemMetadataIndex, taken again after a task that changes
+ * metadata), and set up and tear down once per run. Any other task is run on
+ * each item with perform(). Each task reports as usual; the composite's result
+ * sums up the statuses and time of each task, and its status is the worst of
+ * them.
+ *
+ * @author Kim Shepherd
+ */
+
+@Distributive
+public class CompositeTask extends AbstractCurationTask
+{
+    private static final String PLUGIN_PREFIX = "composite";
+
+    private static Logger log = Logger.getLogger(CompositeTask.class);
+
+    // The tasks to run, in order
+    private final List<Member> members = new ArrayList<Member>();
+
+    private int items = 0;
+    private int snapshots = 0;
+
+    @Override
+    public void init(Curator curator, String taskId) throws IOException
+    {
+        super.init(curator, taskId);
+
+        String tasks = ConfigurationManager.getProperty(PLUGIN_PREFIX, "composite.tasks." + taskId);
+        if(tasks == null)
+        {
+            tasks = ConfigurationManager.getProperty(PLUGIN_PREFIX, "composite.tasks");
+        }
+        if(tasks == null)
+        {
+            report("No tasks are configured for " + taskId);
+            return;
+        }
+
+        for(String name : StringUtils.stripAll(tasks.split(",")))
+        {
+            if(name.length() == 0)
+            {
+                continue;
+            }
+            if(name.equals(taskId))
+            {
+                report("Skipping " + name + ": a composite task can't run itself");
+                continue;
+            }
+            CurationTask task = (CurationTask) PluginManager.getNamedPlugin("curate", CurationTask.class, name);
+            if(task == null)
+            {
+                report("Skipping " + name + ": no such task");
+                continue;
+            }
+            task.init(curator, name);
+            members.add(new Member(name, task));
+        }
+    }
+
+    @Override
+    public int perform(DSpaceObject dso) throws IOException
+    {
+        if(members.isEmpty())
+        {
+            setResult("No tasks to run");
+            return Curator.CURATE_ERROR;
+        }
+
+        items = 0;
+        snapshots = 0;
+        long start = System.currentTimeMillis();
+        for(Member member : members)
+        {
+            member.start();
+        }
+        try
+        {
+            distribute(dso);
+        }
+        finally
+        {
+            for(Member member : members)
+            {
+                member.finish();
+            }
+        }
+
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%d items loaded once for %d tasks, %d metadata snapshots, in %.1f s",
+                items, members.size(), snapshots, seconds));
+        int status = Curator.CURATE_SKIP;
+        for(Member member : members)
+        {
+            result.append('\n').append(member.getStatistics());
+            status = worst(status, member.getStatus());
+        }
+        setResult(result.toString());
+        report(result.toString());
+        return status;
+    }
+
+    /**
+     * Give an item to every task in turn
+     */
+    @Override
+    protected void performItem(Item item) throws SQLException, IOException
+    {
+        items++;
+        ItemMetadataIndex index = null;
+        for(Member member : members)
+        {
+            if(member.startError != null)
+            {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int status;
+            try
+            {
+                if(member.task instanceof ItemCurationTask)
+                {
+                    ItemCurationTask itemTask = (ItemCurationTask) member.task;
+                    if(index == null)
+                    {
+                        index = new ItemMetadataIndex(item);
+                        snapshots++;
+                    }
+                    status = itemTask.curateItem(item, index);
+                    if(itemTask.changesMetadata())
+                    {
+                        index = null;
+                    }
+                }
+                else
+                {
+                    status = member.task.perform(item);
+                    // It may have changed anything
+                    index = null;
+                }
+            }
+            catch(IOException e)
+            {
+                status = Curator.CURATE_ERROR;
+                log.info(member.name + " failed on " + item.getHandle() + ": " + e.getLocalizedMessage());
+                report(member.name + " failed on " + item.getHandle() + ": " + e.getLocalizedMessage());
+            }
+            member.count(status, System.nanoTime() - start);
+        }
+
+        // Done with by every task
+        item.decache();
+    }
+
+    /**
+     * @return The worse of two statuses: errors, then failures, then successes, then skips
+     */
+    private static int worst(int a, int b)
+    {
+        return (rank(a) >= rank(b)) ? a : b;
+    }
+
+    private static int rank(int status)
+    {
+        switch(status)
+        {
+            case Curator.CURATE_SKIP:
+            case Curator.CURATE_UNSET:
+                return 0;
+            case Curator.CURATE_SUCCESS:
+                return 1;
+            case Curator.CURATE_FAIL:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * One of the tasks, and how it has done
+     */
+    private class Member
+    {
+        private final String name;
+        private final CurationTask task;
+        private String startError = null;
+        private int succeeded = 0;
+        private int failed = 0;
+        private int skipped = 0;
+        private int errors = 0;
+        private long nanos = 0;
+
+        private Member(String name, CurationTask task)
+        {
+            this.name = name;
+            this.task = task;
+        }
+
+        private void start()
+        {
+            succeeded = failed = skipped = errors = 0;
+            nanos = 0;
+            startError = null;
+            if(task instanceof ItemCurationTask)
+            {
+                try
+                {
+                    ((ItemCurationTask) task).startRun();
+                }
+                catch(IOException e)
+                {
+                    startError = e.getLocalizedMessage();
+                    log.info("Couldn't start " + name + ": " + startError);
+                    report("Couldn't start " + name + ", skipping it: " + startError);
+                }
+            }
+        }
+
+        private void finish()
+        {
+            if(startError == null && task instanceof ItemCurationTask)
+            {
+                try
+                {
+                    ((ItemCurationTask) task).finishRun();
+                }
+                catch(IOException e)
+                {
+                    errors++;
+                    log.info("Couldn't finish " + name + ": " + e.getLocalizedMessage());
+                    report("Couldn't finish " + name + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+
+        private void count(int status, long time)
+        {
+            nanos += time;
+            switch(status)
+            {
+                case Curator.CURATE_SUCCESS:
+                    succeeded++;
+                    break;
+                case Curator.CURATE_FAIL:
+                    failed++;
+                    break;
+                case Curator.CURATE_SKIP:
+                case Curator.CURATE_UNSET:
+                    skipped++;
+                    break;
+                default:
+                    errors++;
+            }
+        }
+
+        private int getStatus()
+        {
+            if(startError != null || errors > 0)
+            {
+                return Curator.CURATE_ERROR;
+            }
+            if(failed > 0)
+            {
+                return Curator.CURATE_FAIL;
+            }
+            return (succeeded > 0) ? Curator.CURATE_SUCCESS : Curator.CURATE_SKIP;
+        }
+
+        /**
+         * @return e.g. "exif: 120 succeeded, 0 failed, 3 skipped, 0 errors in 4.2 s"
+         */
+        private String getStatistics()
+        {
+            if(startError != null)
+            {
+                return name + ": not run, " + startError;
+            }
+            return String.format("%s: %d succeeded, %d failed, %d skipped, %d errors in %.1f s",
+                    name, succeeded, failed, skipped, errors, nanos / 1e9);
+        }
+    }
+}
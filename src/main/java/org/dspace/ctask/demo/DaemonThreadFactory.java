@@ -0,0 +1,40 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DaemonThreadFactory
+ * -------------------
+ * Creates named daemon threads for the worker pools shared between task
+ * instances, so an idle pool never holds the curation CLI open.
+ *
+ * @author Kim Shepherd
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param name The prefix for thread names, e.g. "linkchecker" for linkchecker-1, linkchecker-2...
+     */
+    public DaemonThreadFactory(String name)
+    {
+        this.name = name;
+    }
+
+    public Thread newThread(Runnable r)
+    {
+        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.authorize.ResourcePolicy;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * EffectiveAccessEvaluator
+ * ------------------------
+ * Works out whether anonymous users can read a bitstream now, from its READ
+ * policies and those of its bundle, without going back to the database.
+ *
+ * A policy grants anonymous access when its group is Anonymous or any group
+ * that Anonymous is a member of, however deeply nested, and today is within
+ * its start and end dates. The groups containing Anonymous are found once,
+ * from group2group, when the evaluator is created, and kept as a sorted array.
+ * "Today" is also fixed then, so create one for each run.
+ *
+ * A bitstream with READ policies of its own is public if any of them grants
+ * anonymous access. A bitstream with none inherits its bundle's READ policies.
+ *
+ * @author Kim Shepherd
+ */
+public class EffectiveAccessEvaluator
+{
+    private static final int ANONYMOUS = 0;
+
+    // Groups whose members include Anonymous, sorted for binary search
+    private final int[] publicGroups;
+    private final Date now = new Date();
+
+    /**
+     * @param c The current context
+     * @throws SQLException If the group hierarchy couldn't be read
+     */
+    public EffectiveAccessEvaluator(Context c) throws SQLException
+    {
+        // Parents of each group; a child group's members are members of its parents
+        Map<Integer, List<Integer>> parents = new HashMap<Integer, List<Integer>>();
+        TableRowIterator rows = DatabaseManager.query(c, "SELECT parent_id, child_id FROM group2group");
+        try
+        {
+            while (rows.hasNext())
+            {
+                TableRow row = rows.next();
+                int child = row.getIntColumn("child_id");
+                List<Integer> p = parents.get(child);
+                if (p == null)
+                {
+                    p = new ArrayList<Integer>(2);
+                    parents.put(child, p);
+                }
+                p.add(row.getIntColumn("parent_id"));
+            }
+        }
+        finally
+        {
+            rows.close();
+        }
+
+        publicGroups = closure(ANONYMOUS, parents);
+    }
+
+    /**
+     * @return group and every group above it, sorted
+     */
+    private static int[] closure(int group, Map<Integer, List<Integer>> parents)
+    {
+        List<Integer> found = new ArrayList<Integer>();
+        found.add(group);
+        LinkedList<Integer> queue = new LinkedList<Integer>(found);
+        Set<Integer> seen = new HashSet<Integer>(found);
+        while (!queue.isEmpty())
+        {
+            List<Integer> p = parents.get(queue.removeFirst());
+            if (p != null)
+            {
+                for (Integer parent : p)
+                {
+                    if (seen.add(parent))
+                    {
+                        found.add(parent);
+                        queue.add(parent);
+                    }
+                }
+            }
+        }
+
+        int[] sorted = new int[found.size()];
+        for (int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = found.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @param groupID A group ID, or -1 for a policy naming an e-person
+     * @return Whether anonymous users are members of the group
+     */
+    public boolean isPublicGroup(int groupID)
+    {
+        return groupID >= 0 && Arrays.binarySearch(publicGroups, groupID) >= 0;
+    }
+
+    /**
+     * @return How many groups anonymous users are members of, counting Anonymous
+     */
+    public int getPublicGroupCount()
+    {
+        return publicGroups.length;
+    }
+
+    /**
+     * @param groupID The policy's group, or -1 if it names an e-person
+     * @param start The policy's start date, or null
+     * @param end The policy's end date, or null
+     * @return Whether the policy lets anonymous users in now
+     */
+    public boolean grantsAnonymous(int groupID, Date start, Date end)
+    {
+        // The same test as ResourcePolicy.isDateValid()
+        if (start != null && now.before(start))
+        {
+            return false;
+        }
+        if (end != null && now.after(end))
+        {
+            return false;
+        }
+        return isPublicGroup(groupID);
+    }
+
+    /**
+     * @return A new, empty collection of one bitstream's READ policies
+     */
+    public Access newAccess()
+    {
+        return new Access();
+    }
+
+    /**
+     * The READ policies of one bitstream and its bundle, added one at a time
+     */
+    public class Access
+    {
+        private boolean ownPolicies = false;
+        private boolean ownGrant = false;
+        private boolean bundleGrant = false;
+
+        private Access()
+        {
+        }
+
+        /**
+         * @param onBundle Whether the policy is on the bundle rather than the bitstream
+         * @param groupID The policy's group, or -1 if it names an e-person
+         * @param start The policy's start date, or null
+         * @param end The policy's end date, or null
+         */
+        public void add(boolean onBundle, int groupID, Date start, Date end)
+        {
+            boolean grants = grantsAnonymous(groupID, start, end);
+            if (onBundle)
+            {
+                bundleGrant |= grants;
+            }
+            else
+            {
+                ownPolicies = true;
+                ownGrant |= grants;
+            }
+        }
+
+        public void addAll(boolean onBundle, List<ResourcePolicy> policies)
+        {
+            for (ResourcePolicy rp : policies)
+            {
+                add(onBundle, rp.getGroupID(), rp.getStartDate(), rp.getEndDate());
+            }
+        }
+
+        /**
+         * @return Whether the bitstream has READ policies of its own, so its bundle's don't matter
+         */
+        public boolean hasOwnPolicies()
+        {
+            return ownPolicies;
+        }
+
+        /**
+         * @return Whether anonymous users can read the bitstream now
+         */
+        public boolean isPublic()
+        {
+            return ownPolicies ? ownGrant : bundleGrant;
+        }
+    }
+}
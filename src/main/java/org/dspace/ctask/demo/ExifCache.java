@@ -0,0 +1,243 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.Bitstream;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * ExifCache
+ * ---------
+ * Remembers what ExifExtractor found in each image between runs, keyed by the
+ * bitstream's checksum, so an image that hasn't changed, or that is attached to
+ * several items, is only read and parsed once.
+ *
+ * Entries are also keyed by a version of the exif.tag.* mapping they were
+ * extracted with. When the mapping changes, entries made with the old mapping
+ * are no longer used and are removed.
+ *
+ * Configured in [dspace]/config/modules/exif.cfg:
+ *
+ * exif.cache = true
+ * exif.cache.file = /dspace/var/exif.cache
+ *
+ * @author Kim Shepherd
+ */
+public class ExifCache
+{
+    private static final String PLUGIN_PREFIX = "exif";
+
+    private static ExifCache instance = null;
+    private static boolean initialised = false;
+    // Runs using the open cache
+    private static int users = 0;
+
+    private static Logger log = Logger.getLogger(ExifCache.class);
+
+    private final KeyValueLog entries;
+    private final Set<String> retained = new HashSet<String>();
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private ExifCache(KeyValueLog entries)
+    {
+        this.entries = entries;
+    }
+
+    /**
+     * Open the shared cache for a run, or join the run that already has it open.
+     * Each run that gets it must call close() when it ends.
+     *
+     * @return The shared cache, or null if it is switched off or couldn't be opened
+     */
+    public static synchronized ExifCache open()
+    {
+        if (!initialised)
+        {
+            initialised = true;
+            if (ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "exif.cache", true))
+            {
+                String path = ConfigurationManager.getProperty(PLUGIN_PREFIX, "exif.cache.file");
+                if (path == null)
+                {
+                    path = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" +
+                            File.separator + "exif.cache";
+                }
+
+                try
+                {
+                    instance = new ExifCache(new KeyValueLog(new File(path)));
+                    log.debug("Opened EXIF cache " + path + " with " + instance.entries.size() + " images");
+                }
+                catch (IOException e)
+                {
+                    log.info("Couldn't open EXIF cache " + path + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        if (instance != null)
+        {
+            users++;
+        }
+        return instance;
+    }
+
+    /**
+     * Remove every entry made with a different mapping version. Only the first
+     * call for a version does any work.
+     *
+     * @param version The current mapping version
+     */
+    public synchronized void retain(String version)
+    {
+        if (!retained.add(version))
+        {
+            return;
+        }
+
+        String prefix = version + ":";
+        int removed = 0;
+        try
+        {
+            for (String key : entries.getEntries().keySet())
+            {
+                if (!key.startsWith(prefix))
+                {
+                    entries.remove(key);
+                    removed++;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't write EXIF cache: " + e.getLocalizedMessage());
+        }
+        if (removed > 0)
+        {
+            log.debug("Removed " + removed + " EXIF cache entries made with an older mapping");
+        }
+    }
+
+    /**
+     * @param bitstream The image
+     * @param version The mapping version
+     * @return What was found in the image with this mapping, or null if it isn't cached
+     */
+    public synchronized String get(Bitstream bitstream, String version)
+    {
+        String key = getKey(bitstream, version);
+        String found = (key != null) ? entries.get(key) : null;
+        if (found != null)
+        {
+            hits++;
+        }
+        else
+        {
+            misses++;
+        }
+        return found;
+    }
+
+    /**
+     * Remember what was found in an image
+     *
+     * @param bitstream The image
+     * @param version The mapping version
+     * @param found What was found
+     */
+    public synchronized void put(Bitstream bitstream, String version, String found)
+    {
+        String key = getKey(bitstream, version);
+        if (key == null)
+        {
+            return;
+        }
+        try
+        {
+            entries.put(key, found);
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't write EXIF cache: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Write any buffered entries to disk
+     */
+    public void flush()
+    {
+        try
+        {
+            entries.flush();
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't write EXIF cache: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return A short summary of cache usage, for reports
+     */
+    public synchronized String getStatistics()
+    {
+        return "EXIF cache: " + hits + " hits, " + misses + " misses, " + entries.size() + " images";
+    }
+
+    /**
+     * End a run's use of the cache. Once no run is using it, it is written out,
+     * compacted if it has grown, and closed; the next run opens it again.
+     */
+    public void close()
+    {
+        synchronized (ExifCache.class)
+        {
+            if (--users > 0)
+            {
+                flush();
+                return;
+            }
+            instance = null;
+            initialised = false;
+            closeLog();
+        }
+    }
+
+    private void closeLog()
+    {
+        try
+        {
+            entries.close();
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't close EXIF cache: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return The cache key for an image, or null if its checksum isn't known
+     */
+    private static String getKey(Bitstream bitstream, String version)
+    {
+        String checksum = bitstream.getChecksum();
+        if (checksum == null)
+        {
+            return null;
+        }
+        return version + ":" + bitstream.getChecksumAlgorithm() + ":" + checksum;
+    }
+}
@@ -8,6 +8,7 @@
 package org.dspace.ctask.demo;
 
 import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
 import com.drew.metadata.*;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -20,19 +21,41 @@ import org.dspace.curate.Distributive;
 import org.dspace.storage.bitstore.BitstreamStorageManager;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * ExifExtractor
  * -----------------
- * ExifExtractor extracts EXIF metadata from JPEG images.
+ * ExifExtractor extracts EXIF metadata from JPEG, TIFF, PNG, WebP and HEIC images.
  * This is a simplified version of my original "Extract GPS Coordinates" task which will
  * look for a list of exif tags specified in [dspace]/config/modules/exif.cfg, extract them
- * from the JPEG if they exist, and save them in the fields specified.
+ * from the image if they exist, and save them in the fields specified.
  *
  * Tags configured in exif.cfg should be all lowercase, and should contain underscores
  * in place of spaces (eg. "gps latitude" becomes "gps_latitude"):
@@ -40,17 +63,59 @@ import java.util.Iterator;
  * exif.tag.gps_latitude = dc.coverage.spatial
  * exif.tag.gps_longitude = dc.coverage.spatial
  *
+ * Every bitstream in the ORIGINAL bundle is looked at, whatever format it is
+ * registered as: the image format is recognised from the first few bytes read,
+ * and only the parts of the image holding metadata are then read (see
+ * ImageHeaderReader), straight from the asset store when it is a local directory.
+ * The number of images, bytes read and time taken for each format are reported
+ * at the end of the run.
+ *
+ * Items with many images can be processed as a pipeline by setting
+ * exif.pipeline.threads above 1: one thread reads image headers from storage
+ * while a pool of threads parses them, and the results are applied to the item
+ * in the same order as when processing one image at a time.
+ *
+ * What is found in each image is remembered in the ExifCache, keyed by the
+ * bitstream's checksum, so unchanged and duplicate images aren't read again.
+ *
+ * On a collection or community, items can be processed several at a time,
+ * each with its own Context, by setting exif.parallel.items (see
+ * ParallelItemRunner), and each worker commits every exif.commit.interval
+ * items. Otherwise the items are in the curator's context, which commits them;
+ * the run's own Context is only used to read the images.
+ *
  * @author Kim Shepherd
  */
 
 @Distributive
-public class ExifExtractor extends AbstractCurationTask
+@ParallelItems(8)
+public class ExifExtractor extends AbstractCurationTask implements ItemCurationTask
 {
     private static final String PLUGIN_PREFIX = "exif";
     int status = Curator.CURATE_SKIP;
     private HashMap<String, String> tags;
+    private ExifTagMapping mapping;
     private boolean clearPreviousValues = false;
-    Context c;
+    private MetadataWriteBuffer writes;
+    private boolean localFiles = true;
+    private int pipelineThreads = 1;
+    private int pipelineDepth = 16;
+    // Open for the length of a run, or null if the cache is switched off
+    private ExifCache cache = null;
+    private String mappingVersion = null;
+    private final Throughput throughput = new Throughput();
+    private int commitInterval = 100;
+    private int parallelItems = 1;
+
+    // The context of the current perform(), used when not on a worker thread
+    private Context c;
+
+    // Part of the cache's mapping version, to be changed when what can be extracted changes
+    private static final String EXTRACTOR_VERSION = "2";
+
+    // The pipeline's threads, created for each run with exif.pipeline.threads parsers and shut down at its end
+    private ExecutorService parsers = null;
+    private ExecutorService reader = null;
 
     private static Logger log = Logger.getLogger(ExifExtractor.class);
 
@@ -60,10 +125,16 @@ public class ExifExtractor extends AbstractCurationTask
         super.init(curator, taskId);
 
         try {
-            c = new Context();
             tags = new HashMap<String, String>();
             populateTagList();
+            mapping = new ExifTagMapping(tags);
+            mappingVersion = getMappingVersion();
             clearPreviousValues = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "exif.options.clearExistingMetadata", false);
+            localFiles = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "exif.options.localFiles", true);
+            pipelineThreads = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "exif.pipeline.threads", 1);
+            pipelineDepth = Math.max(1, ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "exif.pipeline.depth", 16));
+            commitInterval = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "exif.commit.interval", 100);
+            parallelItems = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "exif.parallel.items", 1);
         }
         catch(Exception e)
         {
@@ -89,6 +160,20 @@ public class ExifExtractor extends AbstractCurationTask
         }
     }
 
+    /**
+     * @return A short hash of the tag mapping, which changes whenever the mapping does
+     */
+    private String getMappingVersion()
+    {
+        List<String> mapped = new ArrayList<String>();
+        for(Map.Entry<String, String> tag : tags.entrySet()) {
+            mapped.add(tag.getKey() + "=" + tag.getValue().trim());
+        }
+        Collections.sort(mapped);
+        mapped.add("extractor=" + EXTRACTOR_VERSION);
+        return Integer.toHexString(mapped.toString().hashCode());
+    }
+
     /**
      * Perform the curation task upon passed DSO
      *
@@ -98,58 +183,131 @@ public class ExifExtractor extends AbstractCurationTask
     @Override
     public int perform(DSpaceObject dso) throws IOException
     {
+        try {
+            c = new Context();
+        }
+        catch(SQLException e) {
+            report("Couldn't obtain context: " + e.getLocalizedMessage());
+            return Curator.CURATE_ERROR;
+        }
+        openCache();
+        startPipeline();
 
-        distribute(dso);
-        cleanup();
+        int status = Curator.CURATE_SUCCESS;
+        int threads = ParallelItemRunner.getThreads(getClass(), parallelItems);
+        try {
+            if(threads > 1 && (dso instanceof Collection || dso instanceof Community))
+            {
+                // Each worker's context is committed by the runner
+                writes = new MetadataWriteBuffer(null, 0);
+                ParallelItemRunner runner = new ParallelItemRunner(threads, commitInterval);
+                status = runner.run(dso, new ParallelItemRunner.ItemWork()
+                {
+                    public int perform(Item item) throws SQLException, IOException
+                    {
+                        performItem(item);
+                        return Curator.CURATE_SUCCESS;
+                    }
+                });
+                report(runner.getStatistics());
+            }
+            else
+            {
+                // The items are in the curator's context, not c, so committing is left to the curator
+                writes = new MetadataWriteBuffer(null, 0);
+                distribute(dso);
+            }
+        }
+        finally {
+            cleanup();
+        }
+        return status;
+    }
+
+    public void startRun() throws IOException
+    {
+        try {
+            c = new Context();
+        }
+        catch(SQLException e) {
+            throw new IOException("Couldn't obtain context: " + e.getLocalizedMessage());
+        }
+        openCache();
+        startPipeline();
+        // As in perform(), the items are in the curator's context
+        writes = new MetadataWriteBuffer(null, 0);
+    }
+
+    public int curateItem(Item item, ItemMetadataIndex index) throws IOException
+    {
+        try {
+            performItem(item);
+        }
+        catch(SQLException e) {
+            throw new IOException("Couldn't read the images of " + item.getHandle() + ": " + e.getLocalizedMessage());
+        }
         return Curator.CURATE_SUCCESS;
     }
-    
+
+    public boolean changesMetadata()
+    {
+        return true;
+    }
+
+    public void finishRun()
+    {
+        cleanup();
+    }
+
+    /**
+     * Items may be worked on by several threads at once (see ParallelItemRunner)
+     */
+    @Override
+    protected synchronized void report(String message)
+    {
+        super.report(message);
+    }
+
+
     @Override
     protected void performItem(Item item) throws SQLException, IOException
     {
+        Context context = ParallelItemRunner.getContext(c);
+
+        // Formats are recognised from the bitstreams themselves, not the format registry
+        List<Bitstream> images = new ArrayList<Bitstream>();
         for (Bundle bundle : item.getBundles("ORIGINAL"))
         {
-            for (Bitstream bs : bundle.getBitstreams())
+            images.addAll(Arrays.asList(bundle.getBitstreams()));
+        }
+
+        // Fields already cleared for this item, so a second tag going to the same field adds to it
+        Set<String> cleared = new HashSet<String>();
+
+        if(pipelineThreads > 1 && images.size() > 1)
+        {
+            extractPipelined(context, item, images, cleared);
+        }
+        else
+        {
+            for(Bitstream bs : images)
             {
-                if(bs.getFormatDescription().equals("JPEG"))
-                {
+                ImageMetadata found = getCached(bs);
+                if(found == null) {
                     try {
-                        Metadata md = ImageMetadataReader.readMetadata(new BufferedInputStream(BitstreamStorageManager.retrieve(c, bs.getID())));
-                        Iterator mdi = md.getDirectoryIterator();
-
-                        
-                        while(mdi.hasNext()) {
-                            Directory d = (Directory) mdi.next();
-                            Iterator ti = d.getTagIterator();
-
-                            String tagName = "";
-                            String tagValue = "";
-                            while (ti.hasNext()) {
-
-                                Tag t = (Tag) ti.next();
-                                tagName = t.getTagName().toLowerCase().replace(' ','_');
-                                tagValue = t.getDescription();
-                                if(tags.containsKey(tagName)) {
-                                    String[] metadataField = StringUtils.split(tags.get(tagName), ".");
-                                    if(metadataField.length > 2)
-                                        updateItemMetadata(item, metadataField[0], metadataField[1], metadataField[2], tagValue);
-                                    else if(metadataField.length == 2)
-                                        updateItemMetadata(item, metadataField[0], metadataField[1], null, tagValue);
-                                }
-                            }
-                        }
-
-                    } catch(Exception e) {
-                        log.info(e.getLocalizedMessage());
-                        report(item.getHandle() + ": Error extracting EXIF: " + e.getLocalizedMessage());
+                        found = extract(bs, readHeader(context, bs));
+                    }
+                    catch(Exception e) {
+                        found = new ImageMetadata(e);
                     }
                 }
+                apply(item, bs, found, cleared);
             }
-
         }
 
+        // Save everything found in the item's images with a single update
         try {
-            item.update();
+            writes.flush(item);
         }
         catch(Exception e) {
             log.info(e.getLocalizedMessage());
@@ -158,34 +316,450 @@ public class ExifExtractor extends AbstractCurationTask
 
     }
 
-    private void updateItemMetadata(Item item, String schema, String element, String qualifier, String value)
+    /**
+     * Extract the metadata of an item's images in three stages: a reader thread
+     * reads each image's header from storage, the run's parser pool parses the headers,
+     * and this thread applies what was found to the item, in the images' order.
+     * At most exif.pipeline.depth headers are held in memory at once.
+     */
+    private void extractPipelined(final Context context, Item item, final List<Bitstream> images, Set<String> cleared)
+            throws IOException
     {
+        final Semaphore window = new Semaphore(pipelineDepth);
+        final BlockingQueue<Future<ImageMetadata>> parsed = new LinkedBlockingQueue<Future<ImageMetadata>>();
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        // Only the reader uses the context while the pipeline runs
+        Future<?> reading = reader.submit(new Runnable()
+        {
+            public void run()
+            {
+                for(final Bitstream bs : images)
+                {
+                    window.acquireUninterruptibly();
+                    if(cancelled.get())
+                    {
+                        return;
+                    }
+
+                    Callable<ImageMetadata> parse;
+                    final ImageMetadata cached = getCached(bs);
+                    if(cached != null) {
+                        parse = new Callable<ImageMetadata>()
+                        {
+                            public ImageMetadata call()
+                            {
+                                return cached;
+                            }
+                        };
+                    }
+                    else {
+                        try {
+                            final ImageHeaderReader.Header header = readHeader(context, bs);
+                            parse = new Callable<ImageMetadata>()
+                            {
+                                public ImageMetadata call()
+                                {
+                                    try {
+                                        return extract(bs, header);
+                                    }
+                                    catch(Exception e) {
+                                        return new ImageMetadata(e);
+                                    }
+                                }
+                            };
+                        }
+                        catch(Exception e) {
+                            final ImageMetadata failed = new ImageMetadata(e);
+                            parse = new Callable<ImageMetadata>()
+                            {
+                                public ImageMetadata call()
+                                {
+                                    return failed;
+                                }
+                            };
+                        }
+                    }
+                    parsed.add(parsers.submit(parse));
+                }
+            }
+        });
+
         try {
-            if(clearPreviousValues)
+            for(Bitstream bs : images)
             {
-                item.clearMetadata(schema, element, qualifier, Item.ANY);
+                Future<ImageMetadata> next = parsed.poll(1, TimeUnit.SECONDS);
+                while(next == null)
+                {
+                    if(reading.isDone())
+                    {
+                        next = parsed.poll();
+                        if(next == null)
+                        {
+                            // The reader has stopped without reading every image
+                            reading.get();
+                            throw new IOException("Error reading images for " + item.getHandle());
+                        }
+                    }
+                    else
+                    {
+                        next = parsed.poll(1, TimeUnit.SECONDS);
+                    }
+                }
+                ImageMetadata found = next.get();
+                window.release();
+                apply(item, bs, found, cleared);
             }
+            reading.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting EXIF for " + item.getHandle());
+        }
+        catch(ExecutionException e) {
+            throw new IOException("Error extracting EXIF for " + item.getHandle() + ": " + e.getCause());
+        }
+        finally {
+            // Let the reader run out if we have stopped early, and wait for it, as it may still be using the context
+            cancelled.set(true);
+            window.release(pipelineDepth);
+            awaitReader(reading);
+        }
+    }
 
-            item.addMetadata(schema, element, qualifier, null, value);
-            item.decache();
-            item.update();
-            c.commit();
-            report(item.getHandle() + " added " + schema + "." + element + "." + qualifier + " = " + value);
+    private static void awaitReader(Future<?> reading)
+    {
+        boolean interrupted = false;
+        while(true)
+        {
+            try {
+                reading.get();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+            catch(ExecutionException e) {
+                // Already reported, or the pipeline stopped early anyway
+                break;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        } catch(Exception e) {
-            log.info(e.getLocalizedMessage());
-            report(item.getHandle() + ": An error occurred updating " + schema + "." + element + "." + qualifier + ": " + value);
+    /**
+     * Look for an image in the EXIF cache
+     *
+     * @param bs The image
+     * @return What was found in the image last time, or null if it isn't cached
+     */
+    private ImageMetadata getCached(Bitstream bs)
+    {
+        String found = (cache != null) ? cache.get(bs, mappingVersion) : null;
+        if(found == null) {
+            return null;
+        }
+        try {
+            return ImageMetadata.decode(found);
+        }
+        catch(IllegalArgumentException e) {
+            // An entry we can't read is as good as none; the image is read again
+            log.debug("Ignoring unreadable EXIF cache entry for bitstream " + bs.getID());
+            return null;
         }
     }
 
+    /**
+     * Find the mapped tags in an image's metadata, and remember them in the EXIF cache
+     *
+     * @param bs The image
+     * @param header What was read from the image
+     * @return The fields and values found
+     */
+    private ImageMetadata extract(Bitstream bs, ImageHeaderReader.Header header) throws ImageProcessingException, MetadataException
+    {
+        long start = System.nanoTime();
+        ImageMetadata found = extract(header);
+        throughput.parsed(header.getFormat(), System.nanoTime() - start);
+        if(cache != null) {
+            cache.put(bs, mappingVersion, found.encode());
+        }
+        return found;
+    }
+
+    /**
+     * Find the mapped tags in an image's metadata. Whatever the image's format,
+     * its metadata has been read as a JPEG header.
+     *
+     * @param header What was read from the image
+     * @return The fields and values found
+     */
+    private ImageMetadata extract(ImageHeaderReader.Header header) throws ImageProcessingException, MetadataException
+    {
+        ImageMetadata found = new ImageMetadata();
+        found.format = header.getFormat();
+        if(header.getMetadata() == null) {
+            // Not an image, or an image with no metadata
+            return found;
+        }
+
+        Metadata md = ImageMetadataReader.readMetadata(new BufferedInputStream(new ByteArrayInputStream(header.getMetadata())));
+        Iterator mdi = md.getDirectoryIterator();
+
+        while(mdi.hasNext()) {
+            Directory d = (Directory) mdi.next();
+            Iterator ti = d.getTagIterator();
+
+            while (ti.hasNext()) {
+
+                // Only tags mapped to a field are formatted
+                int tagType = ((Tag) ti.next()).getTagType();
+                ItemMetadataIndex.Field field = mapping.lookup(d, tagType);
+                if(field != null) {
+                    found.fields.add(field);
+                    found.values.add(d.getDescription(tagType));
+                }
+            }
+        }
+        return found;
+    }
+
+    private void apply(Item item, Bitstream bs, ImageMetadata found, Set<String> cleared)
+    {
+        if(found.error != null) {
+            log.info(found.error);
+            report(item.getHandle() + ": Error extracting EXIF: " + found.error);
+        }
+        else if(found.format == null) {
+            if(isImageFormat(bs.getFormatDescription())) {
+                report(item.getHandle() + ": " + bs.getName() + " is registered as " + bs.getFormatDescription() +
+                        " but isn't an image we can read, skipping");
+            }
+        }
+        else {
+            if(!found.format.equalsIgnoreCase(bs.getFormatDescription())) {
+                report(item.getHandle() + ": " + bs.getName() + " is registered as " + bs.getFormatDescription() +
+                        " but is " + found.format);
+            }
+            for(int i = 0; i < found.fields.size(); i++) {
+                updateItemMetadata(item, found.fields.get(i), found.values.get(i), cleared);
+            }
+        }
+    }
+
+    private static boolean isImageFormat(String description)
+    {
+        return ImageFormat.JPEG.equalsIgnoreCase(description) || ImageFormat.TIFF.equalsIgnoreCase(description) ||
+                ImageFormat.PNG.equalsIgnoreCase(description) || ImageFormat.WEBP.equalsIgnoreCase(description) ||
+                ImageFormat.HEIC.equalsIgnoreCase(description);
+    }
+
+    /**
+     * Recognise a bitstream's format and read just the parts of it holding
+     * metadata. The file is read directly when the asset store is on the local
+     * filesystem, otherwise the bitstream is streamed, and streamed again from
+     * the start if the metadata has to be looked for further back.
+     *
+     * @param context The context the bitstream was loaded in
+     * @param bs The bitstream
+     * @return The format and metadata found
+     */
+    private ImageHeaderReader.Header readHeader(final Context context, final Bitstream bs) throws SQLException, IOException
+    {
+        long start = System.nanoTime();
+        File file = localFiles ? LocalAssetStore.getFile(context, bs) : null;
+        SeekableInput in;
+        if(file != null) {
+            in = SeekableInput.forFile(file);
+        }
+        else {
+            in = new SeekableInput.Reopening()
+            {
+                protected InputStream open() throws IOException
+                {
+                    try {
+                        return new BufferedInputStream(BitstreamStorageManager.retrieve(context, bs.getID()));
+                    }
+                    catch(SQLException e) {
+                        throw new IOException("Couldn't retrieve " + bs.getName() + ": " + e.getLocalizedMessage());
+                    }
+                }
+            };
+        }
+
+        try {
+            ImageHeaderReader.Header header = ImageHeaderReader.readHeader(in);
+            throughput.read(header.getFormat(), in.getBytesRead(), System.nanoTime() - start);
+            return header;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void updateItemMetadata(Item item, ItemMetadataIndex.Field field, String value, Set<String> cleared)
+    {
+        if(clearPreviousValues && cleared.add(field.toString()))
+        {
+            writes.clear(item, field);
+        }
+
+        writes.add(item, field, null, value);
+        report(item.getHandle() + " added " + field + " = " + value);
+    }
+
     private void cleanup() {
+        stopPipeline();
         try
         {
+            writes.commit();
+            report(writes.getStatistics());
+            for(String line : throughput.getStatistics()) {
+                report(line);
+            }
+            if(cache != null) {
+                report(cache.getStatistics());
+            }
             c.complete();
         }
         catch(SQLException e)
         {
-            log.info("Couldn't obtain context: " + e.getLocalizedMessage());
+            log.info("Couldn't complete context: " + e.getLocalizedMessage());
+            c.abort();
+        }
+        c = null;
+        if(cache != null) {
+            cache.close();
+            cache = null;
+        }
+    }
+
+    private void openCache()
+    {
+        cache = ExifCache.open();
+        if(cache != null) {
+            cache.retain(mappingVersion);
+        }
+    }
+
+    private void startPipeline()
+    {
+        if(pipelineThreads > 1)
+        {
+            parsers = Executors.newFixedThreadPool(pipelineThreads, new DaemonThreadFactory("exif-parser"));
+            reader = Executors.newCachedThreadPool(new DaemonThreadFactory("exif-reader"));
+        }
+    }
+
+    private void stopPipeline()
+    {
+        if(parsers != null)
+        {
+            parsers.shutdown();
+            reader.shutdown();
+            parsers = null;
+            reader = null;
+        }
+    }
+
+    /**
+     * Images, bytes read and time spent reading and parsing, for each format
+     */
+    private static class Throughput
+    {
+        private static final String NOT_AN_IMAGE = "Not an image";
+
+        // images, bytes, read nanoseconds, parse nanoseconds
+        private final Map<String, long[]> formats = new TreeMap<String, long[]>();
+
+        private synchronized void read(String format, long bytes, long nanos)
+        {
+            long[] counts = get(format);
+            counts[0]++;
+            counts[1] += bytes;
+            counts[2] += nanos;
+        }
+
+        private synchronized void parsed(String format, long nanos)
+        {
+            get(format)[3] += nanos;
+        }
+
+        private long[] get(String format)
+        {
+            String key = (format != null) ? format : NOT_AN_IMAGE;
+            long[] counts = formats.get(key);
+            if(counts == null) {
+                counts = new long[4];
+                formats.put(key, counts);
+            }
+            return counts;
+        }
+
+        /**
+         * @return One line per format, e.g. "TIFF: 12 images, 96 KB read in 0.4 s, parsed in 0.1 s (24.0 images/s)"
+         */
+        private synchronized List<String> getStatistics()
+        {
+            List<String> lines = new ArrayList<String>();
+            for(Map.Entry<String, long[]> format : formats.entrySet()) {
+                long[] counts = format.getValue();
+                double seconds = (counts[2] + counts[3]) / 1e9;
+                lines.add(String.format("%s: %d images, %d KB read in %.1f s, parsed in %.1f s (%.1f images/s)",
+                        format.getKey(), counts[0], counts[1] / 1024, counts[2] / 1e9, counts[3] / 1e9,
+                        (seconds > 0) ? counts[0] / seconds : 0.0));
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * The mapped fields and values found in one image, or why there are none
+     */
+    private static class ImageMetadata
+    {
+        private final List<ItemMetadataIndex.Field> fields = new ArrayList<ItemMetadataIndex.Field>();
+        private final List<String> values = new ArrayList<String>();
+        // The image's format, or null if it isn't an image we can read
+        private String format = null;
+        private String error = null;
+
+        private ImageMetadata()
+        {
+        }
+
+        private ImageMetadata(Exception e)
+        {
+            this.error = e.getLocalizedMessage();
+        }
+
+        /**
+         * @return This as a string for the EXIF cache: the format, or "-" if it isn't
+         *         an image, then one "field TAB value" line per value
+         */
+        private String encode()
+        {
+            StringBuilder sb = new StringBuilder((format != null) ? format : "-").append('\n');
+            for(int i = 0; i < fields.size(); i++) {
+                sb.append(fields.get(i)).append('\t').append(KeyValueLog.escape(values.get(i))).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static ImageMetadata decode(String s)
+        {
+            ImageMetadata found = new ImageMetadata();
+            String[] lines = s.split("\n");
+            found.format = "-".equals(lines[0]) ? null : lines[0];
+            for(String line : lines) {
+                int tab = line.indexOf('\t');
+                if(tab > 0) {
+                    found.fields.add(ItemMetadataIndex.Field.parse(line.substring(0, tab)));
+                    found.values.add(KeyValueLog.unescape(line.substring(tab + 1)));
+                }
+            }
+            return found;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,181 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import com.drew.metadata.Directory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ExifTagMapping
+ * --------------
+ * The exif.tag.* settings from exif.cfg, compiled for fast lookup while extracting.
+ * Settings name tags by their lowercased, underscored names (gps_latitude) and
+ * target fields by name (dc.coverage.spatial). Field names are parsed once, here.
+ *
+ * Tags are looked up by directory class and integer tag type. The first time a
+ * tag type is seen in a directory class its name is worked out and the answer,
+ * mapped or not, is remembered, so after that a lookup is a couple of array reads
+ * with no strings built. Lookups are safe from many threads at once.
+ *
+ * @author Kim Shepherd
+ */
+public class ExifTagMapping
+{
+    private final Map<String, ItemMetadataIndex.Field> byName;
+    private final ConcurrentHashMap<Class, TypeTable> tables = new ConcurrentHashMap<Class, TypeTable>();
+
+    // Remembered for tags that aren't mapped
+    private static final Object UNMAPPED = new Object();
+
+    /**
+     * @param tags Target field names by normalised tag name
+     */
+    public ExifTagMapping(Map<String, String> tags)
+    {
+        byName = new HashMap<String, ItemMetadataIndex.Field>();
+        for (Map.Entry<String, String> tag : tags.entrySet())
+        {
+            String[] parts = tag.getValue().trim().split("\\.");
+            if (parts.length >= 2)
+            {
+                byName.put(tag.getKey(), new ItemMetadataIndex.Field(parts[0], parts[1], (parts.length > 2) ? parts[2] : null));
+            }
+        }
+    }
+
+    /**
+     * @return Whether any tags are mapped at all
+     */
+    public boolean isEmpty()
+    {
+        return byName.isEmpty();
+    }
+
+    /**
+     * Find the field a tag is mapped to
+     *
+     * @param directory The directory holding the tag
+     * @param tagType The tag's type
+     * @return The target field, or null if the tag isn't mapped
+     */
+    public ItemMetadataIndex.Field lookup(Directory directory, int tagType)
+    {
+        TypeTable table = tables.get(directory.getClass());
+        if (table == null)
+        {
+            TypeTable created = new TypeTable();
+            table = tables.putIfAbsent(directory.getClass(), created);
+            if (table == null)
+            {
+                table = created;
+            }
+        }
+
+        Object found = table.get(tagType);
+        if (found == null)
+        {
+            String name = directory.getTagName(tagType);
+            ItemMetadataIndex.Field field = (name != null) ? byName.get(normalise(name)) : null;
+            found = (field != null) ? field : UNMAPPED;
+            table.put(tagType, found);
+        }
+        return (found != UNMAPPED) ? (ItemMetadataIndex.Field)found : null;
+    }
+
+    /**
+     * @param tagName A tag name as the metadata library gives it, e.g. "GPS Latitude"
+     * @return The name as used in exif.cfg, e.g. "gps_latitude"
+     */
+    static String normalise(String tagName)
+    {
+        return tagName.toLowerCase().replace(' ', '_');
+    }
+
+    /**
+     * An int keyed open addressing table of the tag types seen in one directory
+     * class. Readers see a consistent snapshot without locking; writers copy.
+     */
+    private static class TypeTable
+    {
+        private static final class Snapshot
+        {
+            private final int[] keys;
+            private final Object[] values;
+            private final int size;
+
+            private Snapshot(int capacity, int size)
+            {
+                this.keys = new int[capacity];
+                this.values = new Object[capacity];
+                this.size = size;
+            }
+        }
+
+        private volatile Snapshot snapshot = new Snapshot(64, 0);
+
+        Object get(int key)
+        {
+            Snapshot s = snapshot;
+            int mask = s.keys.length - 1;
+            for (int i = hash(key) & mask; s.values[i] != null; i = (i + 1) & mask)
+            {
+                if (s.keys[i] == key)
+                {
+                    return s.values[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized void put(int key, Object value)
+        {
+            if (get(key) != null)
+            {
+                // Another thread got here first
+                return;
+            }
+            Snapshot old = snapshot;
+            int capacity = old.keys.length;
+            if ((old.size + 1) * 2 > capacity)
+            {
+                capacity *= 2;
+            }
+            Snapshot s = new Snapshot(capacity, old.size + 1);
+            for (int i = 0; i < old.keys.length; i++)
+            {
+                if (old.values[i] != null)
+                {
+                    insert(s, old.keys[i], old.values[i]);
+                }
+            }
+            insert(s, key, value);
+            snapshot = s;
+        }
+
+        private static void insert(Snapshot s, int key, Object value)
+        {
+            int mask = s.keys.length - 1;
+            int i = hash(key) & mask;
+            while (s.values[i] != null && s.keys[i] != key)
+            {
+                i = (i + 1) & mask;
+            }
+            s.keys[i] = key;
+            s.values[i] = value;
+        }
+
+        private static int hash(int key)
+        {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -7,17 +7,19 @@
  */
 package org.dspace.ctask.demo;
 
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.Logger;
 import org.dspace.core.ConfigurationManager;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,6 +32,10 @@ import java.util.List;
  *
  *               This key, and other custom configuration, goes in [dspace]/modules/translator.cfg
  *
+ * Batches of texts are sent as a single POST with one q parameter per text.
+ * Responses are read as a stream, picking out each "translatedText" value
+ * without building the rest of the JSON document.
+ *
  * @author Kim Shepherd
  */
 
@@ -39,11 +45,15 @@ public class GoogleTranslator extends AbstractTranslator
     private static final String PLUGIN_PREFIX = "translator";
 
     private static final String baseUrl = "https://www.googleapis.com/language/translate/v2";
-    private static String apiKey = "";
+    private String apiKey = "";
 
-    private static Logger log = Logger.getLogger(GoogleTranslator.class);
+    // Google's limits on the texts in a single request
+    private static final int MAX_SEGMENTS = 100;
+    private static final int MAX_CHARS = 5000;
 
-    private List<String> results = null;
+    private static final String TRANSLATED_TEXT = "translatedText";
+
+    private static Logger log = Logger.getLogger(GoogleTranslator.class);
 
     @Override
     protected void initApi() {
@@ -57,40 +67,165 @@ public class GoogleTranslator extends AbstractTranslator
 
         text = URLEncoder.encode(text, "UTF-8");
 
-        String translatedText = null;
-
         String url = baseUrl + "?key=" + apiKey;
         url += "&source=" + from + "&target=" + to + "&q=" + text;
 
-        HttpClient client = new HttpClient();
-        HttpMethod hm = new GetMethod(url);
-        int code = client.executeMethod(hm);
-        log.debug("Response code from API call is " + code);
+        List<String> translations = execute(new GetMethod(url), 1);
+        return translations.get(0);
+    }
 
-        if(code == 200) {
-            String response = hm.getResponseBodyAsString();
-            try
-            {
-                JSONArray ja = JSONArray.fromObject(JSONObject.fromObject(JSONObject.fromObject(response).get("data")).get("translations"));
+    @Override
+    protected List<String> translateBatch(String from, String to, List<String> texts) throws IOException {
+
+        log.debug("Performing API call to translate " + texts.size() + " texts from " + from + " to " + to);
+
+        PostMethod pm = new PostMethod(baseUrl);
+        // The v2 API takes a POST as long as it is told to treat it as a GET
+        pm.setRequestHeader("X-HTTP-Method-Override", "GET");
+        pm.addParameter("key", apiKey);
+        pm.addParameter("source", from);
+        pm.addParameter("target", to);
+        for(String text : texts) {
+            pm.addParameter("q", text);
+        }
 
-                if(ja.size() > 0)
-                {
-                    JSONObject jt = ja.getJSONObject(0);
-                    translatedText = jt.get("translatedText").toString();
-                    translatedText = StringEscapeUtils.unescapeHtml(translatedText);
-                }
+        return execute(pm, texts.size());
+    }
+
+    @Override
+    protected int getMaxBatchSegments() {
+        return MAX_SEGMENTS;
+    }
+
+    @Override
+    protected int getMaxBatchChars() {
+        return MAX_CHARS;
+    }
 
+    /**
+     * Run an API request and read the translations from the response
+     *
+     * @param hm The request
+     * @param expected The number of texts in the request
+     * @return The translations, in order, with null for any the API didn't answer
+     * @throws RateLimitedException If the API refused the request because of its quota
+     * @throws IOException If the API couldn't be reached
+     */
+    private List<String> execute(HttpMethod hm, int expected) throws IOException {
+
+        List<String> translations = new ArrayList<String>(expected);
+        try {
+            int code = httpClient.executeMethod(hm);
+            log.debug("Response code from API call is " + code);
+
+            if(code == 429) {
+                throw RateLimitedException.forResponse(hm);
             }
-            catch(Exception e)
-            {
-                log.info("Error reading Google API response: " + e.getLocalizedMessage());
+
+            if(code == 200) {
+                Reader response = new BufferedReader(new InputStreamReader(hm.getResponseBodyAsStream(), "UTF-8"));
+                try
+                {
+                    readTranslations(response, translations);
+                }
+                catch(IOException e)
+                {
+                    log.info("Error reading Google API response: " + e.getLocalizedMessage());
+                }
             }
+        }
+        finally {
+            // Hand the connection back to the pool
+            hm.releaseConnection();
+        }
+
+        // Anything the API didn't answer counts as a failed translation
+        while(translations.size() < expected) {
+            translations.add(null);
+        }
 
+        return translations;
+    }
 
+    /**
+     * Read the value of every "translatedText" member from a JSON response.
+     * Everything else in the response is skipped over.
+     *
+     * @param in The response
+     * @param translations The list to add translations to
+     * @throws IOException If the response can't be read or isn't valid JSON
+     */
+    static void readTranslations(Reader in, List<String> translations) throws IOException {
+
+        StringBuilder string = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1) {
+            if(c == '"') {
+                readString(in, string);
+
+                // The string is only of interest if it is a key followed by a value
+                if(TRANSLATED_TEXT.contentEquals(string) && skipWhitespace(in) == ':') {
+                    if(skipWhitespace(in) != '"') {
+                        throw new IOException("Expected a string value for " + TRANSLATED_TEXT);
+                    }
+                    readString(in, string);
+                    translations.add(StringEscapeUtils.unescapeHtml(string.toString()));
+                }
+            }
         }
+    }
 
-        return translatedText;
+    private static int skipWhitespace(Reader in) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while(c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
     }
 
-}
+    /**
+     * Read a JSON string whose opening quote has already been read
+     */
+    private static void readString(Reader in, StringBuilder string) throws IOException {
 
+        string.setLength(0);
+        int c;
+        while((c = in.read()) != '"') {
+            if(c == -1) {
+                throw new IOException("Unterminated string in response");
+            }
+            if(c == '\\') {
+                c = in.read();
+                switch(c) {
+                    case 'b': string.append('\b'); break;
+                    case 'f': string.append('\f'); break;
+                    case 'n': string.append('\n'); break;
+                    case 'r': string.append('\r'); break;
+                    case 't': string.append('\t'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for(int i = 0; i < 4; i++) {
+                            hex[i] = (char)in.read();
+                        }
+                        try {
+                            string.append((char)Integer.parseInt(new String(hex), 16));
+                        }
+                        catch(NumberFormatException e) {
+                            throw new IOException("Bad unicode escape in response");
+                        }
+                        break;
+                    case -1:
+                        throw new IOException("Unterminated string in response");
+                    default:
+                        // \" \\ and \/
+                        string.append((char)c);
+                        break;
+                }
+            }
+            else {
+                string.append((char)c);
+            }
+        }
+    }
+
+}
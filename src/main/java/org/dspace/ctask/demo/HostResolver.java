@@ -0,0 +1,100 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.core.ConfigurationManager;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HostResolver
+ * ------------
+ * A DNS cache shared by the link checkers. Each host name is looked up at most once
+ * per linkchecker.dns.ttl.minutes. Hosts that don't resolve are remembered for
+ * linkchecker.dns.negative.ttl.seconds, long enough that a run with many links to a
+ * dead domain doesn't query for each, but short enough that a passing DNS failure
+ * doesn't fail every link to the host for the rest of the hour. The JVM only
+ * remembers failed lookups for a few seconds, so without this every link to a dead
+ * domain costs another DNS query.
+ *
+ * @author Kim Shepherd
+ */
+public class HostResolver
+{
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    private static final ConcurrentHashMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    private static long ttl = -1;
+    private static long negativeTTL = -1;
+
+    /**
+     * Find out whether a host name resolves, using a cached answer if there is one
+     *
+     * @param host The host name
+     * @return True if the host has an address
+     */
+    public static boolean isResolvable(String host)
+    {
+        if ("".equals(host))
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Lookup lookup = lookups.get(host);
+        if (lookup == null || now - lookup.time > (lookup.resolvable ? getTTL() : getNegativeTTL()))
+        {
+            boolean resolvable;
+            try
+            {
+                InetAddress.getByName(host);
+                resolvable = true;
+            }
+            catch (UnknownHostException e)
+            {
+                resolvable = false;
+            }
+            lookup = new Lookup(resolvable, now);
+            lookups.put(host, lookup);
+        }
+        return lookup.resolvable;
+    }
+
+    private static synchronized long getTTL()
+    {
+        if (ttl < 0)
+        {
+            ttl = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.dns.ttl.minutes", 60) * 60L * 1000L;
+        }
+        return ttl;
+    }
+
+    private static synchronized long getNegativeTTL()
+    {
+        if (negativeTTL < 0)
+        {
+            negativeTTL = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.dns.negative.ttl.seconds", 60) * 1000L;
+        }
+        return negativeTTL;
+    }
+
+    private static class Lookup
+    {
+        private final boolean resolvable;
+        private final long time;
+
+        private Lookup(boolean resolvable, long time)
+        {
+            this.resolvable = resolvable;
+            this.time = time;
+        }
+    }
+}
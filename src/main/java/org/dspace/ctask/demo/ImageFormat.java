@@ -0,0 +1,102 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+/**
+ * ImageFormat
+ * -----------
+ * Recognises the image formats ExifExtractor can read from their first bytes
+ * (their "magic numbers"), whatever format the bitstream is registered as.
+ * Format names match the DSpace bitstream format registry's short descriptions
+ * where it has one.
+ *
+ * @author Kim Shepherd
+ */
+public class ImageFormat
+{
+    public static final String JPEG = "JPEG";
+    public static final String TIFF = "TIFF";
+    public static final String PNG = "PNG";
+    public static final String WEBP = "WebP";
+    public static final String HEIC = "HEIC";
+
+    /** How many bytes detect() needs to see */
+    public static final int MAGIC_LENGTH = 12;
+
+    private static final byte[] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    // ftyp brands of HEIF images, with HEVC coded (heic...) or unspecified (mif1, msf1) images
+    private static final String[] HEIF_BRANDS = { "heic", "heix", "hevc", "hevx", "heim", "heis", "mif1", "msf1" };
+
+    /**
+     * @param magic The first bytes of the bitstream
+     * @param length How many of them there are, which may be less than MAGIC_LENGTH
+     * @return The format's name, or null if it isn't a format we can read
+     */
+    public static String detect(byte[] magic, int length)
+    {
+        if (length >= 3 && (magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8 && (magic[2] & 0xFF) == 0xFF)
+        {
+            return JPEG;
+        }
+        if (length >= 4 && ((magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0) ||
+                (magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42)))
+        {
+            return TIFF;
+        }
+        if (startsWith(magic, length, 0, PNG_SIGNATURE))
+        {
+            return PNG;
+        }
+        if (length >= 12 && ascii(magic, 0, 4).equals("RIFF") && ascii(magic, 8, 4).equals("WEBP"))
+        {
+            return WEBP;
+        }
+        if (length >= 12 && ascii(magic, 4, 4).equals("ftyp"))
+        {
+            String brand = ascii(magic, 8, 4);
+            for (String heif : HEIF_BRANDS)
+            {
+                if (heif.equals(brand))
+                {
+                    return HEIC;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int offset, byte[] prefix)
+    {
+        if (length < offset + prefix.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (bytes[offset + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Bytes as a string of ASCII characters, e.g. a four character code
+     */
+    static String ascii(byte[] bytes, int offset, int length)
+    {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+        {
+            chars[i] = (char)(bytes[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ImageHeaderReader
+ * -----------------
+ * Reads just the metadata of an image in any format ExifExtractor supports.
+ * The format is recognised from the first bytes read (see ImageFormat) and the
+ * metadata is then found the format's own way:
+ *
+ * JPEG - the metadata segments before the image data (see JpegHeaderReader)
+ * TIFF - the first directory and its EXIF and GPS directories (see TiffHeaderReader)
+ * PNG - the eXIf chunk, if it comes before the image data
+ * WebP - the EXIF chunk, looked for only when the VP8X header says there is one
+ * HEIC - the Exif item, located through the meta box's iinf and iloc boxes
+ *
+ * Whatever the format, the metadata is returned as a small JPEG, so the same
+ * metadata reader and the same tag mapping handle every format.
+ *
+ * @author Kim Shepherd
+ */
+public class ImageHeaderReader
+{
+    // Containers are walked box by box; give up on files with more than this many
+    private static final int MAX_BOXES = 256;
+    // The HEIF meta box is read whole, and is normally a few kilobytes
+    private static final int MAX_META = 1024 * 1024;
+
+    private static final int WEBP_EXIF_FLAG = 0x08;
+
+    /**
+     * The metadata read from an image
+     */
+    public static class Header
+    {
+        private final String format;
+        private final byte[] metadata;
+
+        private Header(String format, byte[] metadata)
+        {
+            this.format = format;
+            this.metadata = metadata;
+        }
+
+        /**
+         * @return The detected format, or null if it isn't an image we can read
+         */
+        public String getFormat()
+        {
+            return format;
+        }
+
+        /**
+         * @return The metadata as a JPEG, or null if the image has none
+         */
+        public byte[] getMetadata()
+        {
+            return metadata;
+        }
+    }
+
+    /**
+     * Recognise an image's format and read its metadata. The caller closes the input.
+     *
+     * @param in The image, positioned at its start
+     * @return The format and metadata found
+     * @throws IOException If the image couldn't be read or is damaged
+     */
+    public static Header readHeader(SeekableInput in) throws IOException
+    {
+        byte[] magic = new byte[ImageFormat.MAGIC_LENGTH];
+        String format = ImageFormat.detect(magic, in.readUpTo(magic));
+        in.seek(0);
+
+        long exif = -1;
+        if (ImageFormat.JPEG.equals(format))
+        {
+            return new Header(format, JpegHeaderReader.readHeader(in));
+        }
+        else if (ImageFormat.TIFF.equals(format))
+        {
+            exif = 0;
+        }
+        else if (ImageFormat.PNG.equals(format))
+        {
+            exif = findPngExif(in);
+        }
+        else if (ImageFormat.WEBP.equals(format))
+        {
+            exif = findWebpExif(in);
+        }
+        else if (ImageFormat.HEIC.equals(format))
+        {
+            exif = findHeifExif(in);
+        }
+
+        if (exif < 0)
+        {
+            return new Header(format, null);
+        }
+        return new Header(format, JpegHeaderReader.wrapExif(TiffHeaderReader.readExif(in, skipExifId(in, exif))));
+    }
+
+    /**
+     * Some formats put the "Exif\0\0" identifier from a JPEG APP1 segment before the
+     * TIFF structure, some don't
+     *
+     * @return Where the TIFF structure starts
+     */
+    private static long skipExifId(SeekableInput in, long position) throws IOException
+    {
+        byte[] id = new byte[6];
+        in.seek(position);
+        if (in.readUpTo(id) == 6 && ImageFormat.ascii(id, 0, 4).equals("Exif") && id[4] == 0 && id[5] == 0)
+        {
+            return position + 6;
+        }
+        return position;
+    }
+
+    /**
+     * PNG chunks are a 4 byte big endian length, a 4 character type, the data and a CRC.
+     * eXIf belongs before the image data, so we stop looking at the first IDAT.
+     *
+     * @return The position of the eXIf chunk's data, or -1
+     */
+    private static long findPngExif(SeekableInput in) throws IOException
+    {
+        byte[] chunk = new byte[8];
+        long position = 8;
+        for (int i = 0; i < MAX_BOXES; i++)
+        {
+            in.seek(position);
+            if (in.readUpTo(chunk) < chunk.length)
+            {
+                break;
+            }
+            String type = ImageFormat.ascii(chunk, 4, 4);
+            if (type.equals("eXIf"))
+            {
+                return position + 8;
+            }
+            if (type.equals("IDAT") || type.equals("IEND"))
+            {
+                break;
+            }
+            position += 12 + (ByteBuffer.wrap(chunk).getInt(0) & 0xFFFFFFFFL);
+        }
+        return -1;
+    }
+
+    /**
+     * A WebP is a RIFF file of chunks with a 4 character type and a 4 byte little
+     * endian length, padded to an even length. Only the extended format, which
+     * starts with a VP8X chunk, can have an EXIF chunk, and VP8X says whether it does.
+     *
+     * @return The position of the EXIF chunk's data, or -1
+     */
+    private static long findWebpExif(SeekableInput in) throws IOException
+    {
+        byte[] chunk = new byte[12];
+        in.seek(0);
+        in.readFully(chunk);
+        long end = 8 + getLittleEndianInt(chunk, 4);
+
+        in.seek(12);
+        in.readFully(chunk);
+        if (!ImageFormat.ascii(chunk, 0, 4).equals("VP8X") || (chunk[8] & WEBP_EXIF_FLAG) == 0)
+        {
+            return -1;
+        }
+
+        long position = 12;
+        for (int i = 0; i < MAX_BOXES && position + 8 <= end; i++)
+        {
+            in.seek(position);
+            if (in.readUpTo(chunk) < 8)
+            {
+                break;
+            }
+            long length = getLittleEndianInt(chunk, 4);
+            if (ImageFormat.ascii(chunk, 0, 4).equals("EXIF"))
+            {
+                return position + 8;
+            }
+            position += 8 + length + (length & 1);
+        }
+        return -1;
+    }
+
+    /**
+     * A HEIF file is a sequence of ISO base media boxes. The meta box lists the file's
+     * items in its iinf box, where the EXIF is an item of type "Exif", and says where
+     * each item is in its iloc box. The item starts with the offset of the TIFF header
+     * within it.
+     *
+     * @return The position of the TIFF header, or -1
+     */
+    private static long findHeifExif(SeekableInput in) throws IOException
+    {
+        byte[] box = new byte[16];
+        long position = 0;
+        for (int i = 0; i < MAX_BOXES; i++)
+        {
+            in.seek(position);
+            if (in.readUpTo(box) < 8)
+            {
+                return -1;
+            }
+            ByteBuffer b = ByteBuffer.wrap(box);
+            long size = b.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (size == 1)
+            {
+                size = b.getLong(8);
+                headerSize = 16;
+            }
+            if (ImageFormat.ascii(box, 4, 4).equals("meta"))
+            {
+                if (size == 0 || size > MAX_META)
+                {
+                    throw new IOException("HEIF meta box too large");
+                }
+                byte[] meta = new byte[(int)size - headerSize];
+                in.seek(position + headerSize);
+                in.readFully(meta);
+                long item;
+                try
+                {
+                    item = findHeifExifItem(ByteBuffer.wrap(meta));
+                }
+                catch (RuntimeException e)
+                {
+                    // Buffer underflows and the like, from boxes that don't add up
+                    throw new IOException("Bad HEIF meta box: " + e);
+                }
+                if (item < 0)
+                {
+                    return -1;
+                }
+
+                byte[] offset = new byte[4];
+                in.seek(item);
+                in.readFully(offset);
+                return item + 4 + (ByteBuffer.wrap(offset).getInt(0) & 0xFFFFFFFFL);
+            }
+            if (size == 0)
+            {
+                // The last box, running to the end of the file
+                return -1;
+            }
+            if (size < headerSize)
+            {
+                throw new IOException("Bad HEIF box size");
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    /**
+     * @param meta The meta box's contents
+     * @return The position in the file of the Exif item, or -1 if there isn't one
+     */
+    private static long findHeifExifItem(ByteBuffer meta)
+    {
+        // meta is a full box: version and flags, then child boxes
+        ByteBuffer iinf = null;
+        ByteBuffer iloc = null;
+        int position = 4;
+        while (position + 8 <= meta.limit())
+        {
+            int size = meta.getInt(position);
+            String type = fourCC(meta, position + 4);
+            if (size < 8 || position + size > meta.limit())
+            {
+                break;
+            }
+            ByteBuffer contents = slice(meta, position + 8, size - 8);
+            if (type.equals("iinf"))
+            {
+                iinf = contents;
+            }
+            else if (type.equals("iloc"))
+            {
+                iloc = contents;
+            }
+            position += size;
+        }
+        if (iinf == null || iloc == null)
+        {
+            return -1;
+        }
+
+        long id = findHeifExifId(iinf);
+        return (id < 0) ? -1 : findHeifItemOffset(iloc, id);
+    }
+
+    private static long findHeifExifId(ByteBuffer iinf)
+    {
+        int version = iinf.get() & 0xFF;
+        iinf.position(4);
+        long entries = (version == 0) ? iinf.getShort() & 0xFFFF : iinf.getInt() & 0xFFFFFFFFL;
+        for (long i = 0; i < entries && iinf.remaining() >= 8; i++)
+        {
+            int start = iinf.position();
+            int size = iinf.getInt();
+            if (size < 8 || start + size > iinf.limit())
+            {
+                break;
+            }
+            if (fourCC(iinf, start + 4).equals("infe") && size >= 16)
+            {
+                // infe versions 2 and 3 have the item type; earlier versions are for files
+                int infeVersion = iinf.get(start + 8) & 0xFF;
+                if (infeVersion >= 2)
+                {
+                    long id = (infeVersion == 2) ? iinf.getShort(start + 12) & 0xFFFF :
+                            iinf.getInt(start + 12) & 0xFFFFFFFFL;
+                    int typeAt = start + ((infeVersion == 2) ? 16 : 18);
+                    if (typeAt + 4 <= start + size && fourCC(iinf, typeAt).equals("Exif"))
+                    {
+                        return id;
+                    }
+                }
+            }
+            iinf.position(start + size);
+        }
+        return -1;
+    }
+
+    private static long findHeifItemOffset(ByteBuffer iloc, long wanted)
+    {
+        int version = iloc.get() & 0xFF;
+        iloc.position(4);
+        int sizes = iloc.get() & 0xFF;
+        int offsetSize = sizes >> 4;
+        int lengthSize = sizes & 0x0F;
+        sizes = iloc.get() & 0xFF;
+        int baseOffsetSize = sizes >> 4;
+        int indexSize = (version == 1 || version == 2) ? sizes & 0x0F : 0;
+
+        long items = (version < 2) ? iloc.getShort() & 0xFFFF : iloc.getInt() & 0xFFFFFFFFL;
+        for (long i = 0; i < items; i++)
+        {
+            long id = (version < 2) ? iloc.getShort() & 0xFFFF : iloc.getInt() & 0xFFFFFFFFL;
+            int constructionMethod = 0;
+            if (version == 1 || version == 2)
+            {
+                constructionMethod = iloc.getShort() & 0x0F;
+            }
+            // data reference index
+            iloc.getShort();
+            long baseOffset = getSized(iloc, baseOffsetSize);
+            int extents = iloc.getShort() & 0xFFFF;
+            long firstOffset = -1;
+            for (int e = 0; e < extents; e++)
+            {
+                getSized(iloc, indexSize);
+                long offset = getSized(iloc, offsetSize);
+                getSized(iloc, lengthSize);
+                if (e == 0)
+                {
+                    firstOffset = offset;
+                }
+            }
+            if (id == wanted)
+            {
+                // Only items stored in the file itself, rather than in the idat box or elsewhere
+                return (constructionMethod == 0 && extents > 0) ? baseOffset + firstOffset : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static long getSized(ByteBuffer b, int size)
+    {
+        switch (size)
+        {
+            case 0:
+                return 0;
+            case 4:
+                return b.getInt() & 0xFFFFFFFFL;
+            case 8:
+                return b.getLong();
+            default:
+                throw new IllegalArgumentException("Bad HEIF iloc field size " + size);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int offset, int length)
+    {
+        ByteBuffer copy = b.duplicate();
+        copy.position(offset);
+        copy.limit(offset + length);
+        return copy.slice();
+    }
+
+    private static String fourCC(ByteBuffer b, int offset)
+    {
+        byte[] code = new byte[4];
+        for (int i = 0; i < 4; i++)
+        {
+            code[i] = b.get(offset + i);
+        }
+        return ImageFormat.ascii(code, 0, 4);
+    }
+
+    private static long getLittleEndianInt(byte[] b, int offset)
+    {
+        return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8) | ((b[offset + 2] & 0xFF) << 16) |
+                ((long)(b[offset + 3] & 0xFF) << 24);
+    }
+}
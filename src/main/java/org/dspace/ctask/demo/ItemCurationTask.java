@@ -0,0 +1,59 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.content.Item;
+import org.dspace.curate.CurationTask;
+
+import java.io.IOException;
+
+/**
+ * ItemCurationTask
+ * ----------------
+ * A curation task that can be given items one at a time by a CompositeTask,
+ * which loads each item once for all of its tasks. Whatever a task would set up
+ * and tear down in perform() for a collection or community is done in
+ * startRun() and finishRun() instead, once for the whole run.
+ *
+ * Tasks that don't implement this are run on each item with perform().
+ *
+ * @author Kim Shepherd
+ */
+public interface ItemCurationTask extends CurationTask
+{
+    /**
+     * Get ready to curate items, e.g. open a Context. Called before the first item.
+     *
+     * @throws IOException If the task can't be run
+     */
+    void startRun() throws IOException;
+
+    /**
+     * Curate one item
+     *
+     * @param item The item, shared with the other tasks; it must not be decached
+     * @param index A snapshot of the item's metadata, shared with the other tasks
+     * @return A Curator status code
+     * @throws IOException If the item couldn't be curated
+     */
+    int curateItem(Item item, ItemMetadataIndex index) throws IOException;
+
+    /**
+     * @return Whether curateItem() may change the item's metadata, so that later
+     *         tasks need a new snapshot
+     */
+    boolean changesMetadata();
+
+    /**
+     * Finish the run, e.g. commit and report statistics. Called after the last item,
+     * if startRun() succeeded.
+     *
+     * @throws IOException If the run couldn't be finished
+     */
+    void finishRun() throws IOException;
+}
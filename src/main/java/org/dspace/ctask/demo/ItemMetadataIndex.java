@@ -0,0 +1,219 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.content.DCValue;
+import org.dspace.content.Item;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ItemMetadataIndex
+ * -----------------
+ * A snapshot of an item's metadata, read from the item once and indexed by field,
+ * by field and language, and by qualifier. Tasks that look at many fields of an
+ * item can use this instead of calling Item.getMetadata() for each one, which
+ * walks every value of the item each time.
+ *
+ * Fields are looked up with Field keys, which are parsed once (e.g. when a task
+ * reads its configuration) so that lookups don't need to split or build strings.
+ * The snapshot doesn't see changes made to the item after it was taken, and the
+ * lists it returns are shared, so must not be changed.
+ *
+ * As with Item.getMetadata(), a qualifier of "*" (Item.ANY) finds the values of
+ * the element with any qualifier or none, e.g. dc.language.* finds dc.language
+ * and dc.language.iso.
+ *
+ * @author Kim Shepherd
+ */
+public class ItemMetadataIndex
+{
+    private static final List<DCValue> NONE = Collections.emptyList();
+
+    // Key used for values with no language
+    private static final String NO_LANGUAGE = "";
+
+    private final DCValue[] values;
+    private final Map<String, List<DCValue>> byField = new HashMap<String, List<DCValue>>();
+    private final Map<String, Map<String, List<DCValue>>> byFieldLanguage = new HashMap<String, Map<String, List<DCValue>>>();
+    private final Map<String, List<DCValue>> byQualifier = new HashMap<String, List<DCValue>>();
+
+    /**
+     * Take a snapshot of an item's metadata
+     *
+     * @param item The item
+     */
+    public ItemMetadataIndex(Item item)
+    {
+        values = item.getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY);
+        for (DCValue value : values)
+        {
+            // Under its own field, and under schema.element.* for wildcard lookups
+            index(Field.key(value.schema, value.element, value.qualifier), value);
+            index(Field.key(value.schema, value.element, Item.ANY), value);
+
+            if (value.qualifier != null)
+            {
+                add(byQualifier, value.qualifier, value);
+            }
+        }
+    }
+
+    /**
+     * @return Every value of the item, in the item's order
+     */
+    public DCValue[] getValues()
+    {
+        return values;
+    }
+
+    /**
+     * @param field The field
+     * @return The field's values in any language, like Item.getMetadata("schema.element.qualifier")
+     */
+    public List<DCValue> get(Field field)
+    {
+        List<DCValue> found = byField.get(field.key);
+        return (found != null) ? found : NONE;
+    }
+
+    /**
+     * @param field The field
+     * @param language The language, or null for values with no language
+     * @return The field's values in the language
+     */
+    public List<DCValue> get(Field field, String language)
+    {
+        Map<String, List<DCValue>> languages = byFieldLanguage.get(field.key);
+        if (languages == null)
+        {
+            return NONE;
+        }
+        List<DCValue> found = languages.get((language == null) ? NO_LANGUAGE : language);
+        return (found != null) ? found : NONE;
+    }
+
+    /**
+     * @param field The field
+     * @param language The language, or null for values with no language
+     * @return Whether the field has any values in the language
+     */
+    public boolean has(Field field, String language)
+    {
+        return !get(field, language).isEmpty();
+    }
+
+    /**
+     * @param qualifier A qualifier
+     * @return The values of every field with the qualifier, in any schema, element or language
+     */
+    public List<DCValue> getByQualifier(String qualifier)
+    {
+        List<DCValue> found = byQualifier.get(qualifier);
+        return (found != null) ? found : NONE;
+    }
+
+    private void index(String key, DCValue value)
+    {
+        add(byField, key, value);
+
+        Map<String, List<DCValue>> languages = byFieldLanguage.get(key);
+        if (languages == null)
+        {
+            languages = new HashMap<String, List<DCValue>>(4);
+            byFieldLanguage.put(key, languages);
+        }
+        add(languages, (value.language == null) ? NO_LANGUAGE : value.language, value);
+    }
+
+    private static void add(Map<String, List<DCValue>> map, String key, DCValue value)
+    {
+        List<DCValue> list = map.get(key);
+        if (list == null)
+        {
+            list = new ArrayList<DCValue>(2);
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+
+    /**
+     * A metadata field, parsed once from its schema.element.qualifier name
+     */
+    public static final class Field
+    {
+        private final String schema;
+        private final String element;
+        private final String qualifier;
+        private final String key;
+
+        public Field(String schema, String element, String qualifier)
+        {
+            this.schema = schema;
+            this.element = element;
+            this.qualifier = qualifier;
+            this.key = key(schema, element, qualifier);
+        }
+
+        /**
+         * @param name A field name, schema.element or schema.element.qualifier, where the qualifier may be *
+         * @return The field
+         * @throws IllegalArgumentException If the name isn't a field name
+         */
+        public static Field parse(String name)
+        {
+            String[] parts = name.trim().split("\\.");
+            if (parts.length < 2 || parts.length > 3)
+            {
+                throw new IllegalArgumentException("Not a metadata field: " + name);
+            }
+            if (Item.ANY.equals(parts[0]) || Item.ANY.equals(parts[1]))
+            {
+                throw new IllegalArgumentException("Only the qualifier of a metadata field can be " + Item.ANY + ": " + name);
+            }
+            return new Field(parts[0], parts[1], (parts.length > 2) ? parts[2] : null);
+        }
+
+        /**
+         * @return Whether the qualifier is "*", matching any qualifier or none
+         */
+        public boolean isWildcard()
+        {
+            return Item.ANY.equals(qualifier);
+        }
+
+        public String getSchema()
+        {
+            return schema;
+        }
+
+        public String getElement()
+        {
+            return element;
+        }
+
+        public String getQualifier()
+        {
+            return qualifier;
+        }
+
+        public String toString()
+        {
+            return key;
+        }
+
+        private static String key(String schema, String element, String qualifier)
+        {
+            return (qualifier == null) ? schema + "." + element : schema + "." + element + "." + qualifier;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.content.DCValue;
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ItemValueCursor
+ * ---------------
+ * Lists the values of one metadata field for every archived item in a
+ * collection or community, an item at a time, without loading the items.
+ * Items, handles and metadata values are joined in the database and streamed
+ * back in item order, so a task can decide which items need changing before
+ * it loads any of them.
+ *
+ * Every item is listed, with no values if it hasn't got the field. An item in
+ * more than one of the collections may be listed more than once.
+ *
+ * @author Kim Shepherd
+ */
+public class ItemValueCursor
+{
+    // Collections per query, keeping IN lists within what every database accepts
+    private static final int COLLECTIONS_PER_QUERY = 500;
+    // Rows fetched from the database at a time
+    private static final int FETCH_SIZE = 1000;
+
+    private final Context c;
+    private final ItemMetadataIndex.Field field;
+    private final List<Integer> collections;
+    private int nextCollection = 0;
+
+    private PreparedStatement statement = null;
+    private ResultSet rows = null;
+    // Whether rows is on the first row of an item not yet returned by next()
+    private boolean pending = false;
+
+    private int itemID = -1;
+    private String handle = null;
+    private final List<DCValue> values = new ArrayList<DCValue>();
+
+    /**
+     * @param c The current context, which must not be committed while the cursor is open
+     * @param container A Collection or Community
+     * @param field The field whose values are wanted
+     * @throws SQLException If the collections couldn't be listed
+     */
+    public ItemValueCursor(Context c, DSpaceObject container, ItemMetadataIndex.Field field) throws SQLException
+    {
+        this.c = c;
+        this.field = field;
+        this.collections = BitstreamPolicyCursor.listCollections(container);
+    }
+
+    /**
+     * Move to the next item
+     *
+     * @return false when there are no more items
+     * @throws SQLException If a query failed
+     */
+    public boolean next() throws SQLException
+    {
+        values.clear();
+        while (!pending)
+        {
+            if (rows != null && rows.next())
+            {
+                pending = true;
+            }
+            else
+            {
+                close();
+                if (nextCollection >= collections.size())
+                {
+                    return false;
+                }
+                openNext();
+            }
+        }
+
+        itemID = rows.getInt("item_id");
+        handle = rows.getString("handle");
+        pending = false;
+        do
+        {
+            if (rows.getInt("item_id") != itemID)
+            {
+                pending = true;
+                break;
+            }
+            String value = rows.getString("text_value");
+            if (value != null)
+            {
+                DCValue dcv = new DCValue();
+                dcv.schema = field.getSchema();
+                dcv.element = field.getElement();
+                dcv.qualifier = field.getQualifier();
+                dcv.value = value;
+                dcv.language = rows.getString("text_lang");
+                values.add(dcv);
+            }
+        }
+        while (rows.next());
+        return true;
+    }
+
+    public int getItemID()
+    {
+        return itemID;
+    }
+
+    /**
+     * @return The item's handle, or null if it hasn't got one
+     */
+    public String getHandle()
+    {
+        return handle;
+    }
+
+    /**
+     * @return The item's values of the field, in order, which are only valid until the next call to next()
+     */
+    public List<DCValue> getValues()
+    {
+        return values;
+    }
+
+    /**
+     * Close the current query. The cursor may be abandoned after this.
+     */
+    public void close()
+    {
+        try
+        {
+            if (rows != null)
+            {
+                rows.close();
+            }
+            if (statement != null)
+            {
+                statement.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            // Nothing more to read from it either way
+        }
+        rows = null;
+        statement = null;
+        pending = false;
+    }
+
+    private void openNext() throws SQLException
+    {
+        int end = Math.min(collections.size(), nextCollection + COLLECTIONS_PER_QUERY);
+        List<Integer> batch = collections.subList(nextCollection, end);
+        nextCollection = end;
+
+        String sql = "SELECT i.item_id, h.handle, mv.text_value, mv.text_lang " +
+                "FROM item i " +
+                "LEFT JOIN handle h ON h.resource_type_id = ? AND h.resource_id = i.item_id " +
+                "LEFT JOIN metadatavalue mv ON mv.item_id = i.item_id AND mv.metadata_field_id = (" +
+                "SELECT mf.metadata_field_id FROM metadatafieldregistry mf " +
+                "JOIN metadataschemaregistry ms ON ms.metadata_schema_id = mf.metadata_schema_id " +
+                "WHERE ms.short_id = ? AND mf.element = ? AND " +
+                ((field.getQualifier() == null) ? "mf.qualifier IS NULL" : "mf.qualifier = ?") + ") " +
+                "WHERE i.in_archive = '1' AND i.item_id IN (" +
+                "SELECT c2i.item_id FROM collection2item c2i WHERE c2i.collection_id IN (" +
+                BitstreamPolicyCursor.placeholders(batch.size()) + ")) " +
+                "ORDER BY i.item_id, mv.place";
+
+        statement = c.getDBConnection().prepareStatement(sql);
+        int p = 1;
+        statement.setInt(p++, Constants.ITEM);
+        statement.setString(p++, field.getSchema());
+        statement.setString(p++, field.getElement());
+        if (field.getQualifier() != null)
+        {
+            statement.setString(p++, field.getQualifier());
+        }
+        for (Integer collection : batch)
+        {
+            statement.setInt(p++, collection);
+        }
+
+        // With autocommit off, as it is in a DSpace context, this streams rather than loading every row
+        statement.setFetchSize(FETCH_SIZE);
+        rows = statement.executeQuery();
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * JpegHeaderReader
+ * ----------------
+ * Reads just the metadata of a JPEG, without the image data. The JPEG's marker
+ * segments are walked up to the start of the scan (SOS), keeping the segments
+ * that hold metadata (APP1 for EXIF and XMP, APP13 for IPTC, COM comments and
+ * the SOF frame header with the image size) and skipping over everything else.
+ * The kept segments are returned as a small JPEG of their own that any JPEG
+ * metadata reader can parse.
+ *
+ * A JPEG's metadata is normally within its first few kilobytes, so this reads
+ * kilobytes rather than megabytes per image. Local files are read through a
+ * memory mapped window that only ever maps the part of the file being read
+ * (see SeekableInput).
+ *
+ * @author Kim Shepherd
+ */
+public class JpegHeaderReader
+{
+    private static final int MARKER = 0xFF;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int APP13 = 0xED;
+    private static final int COM = 0xFE;
+
+    // Starts an APP1 segment holding EXIF
+    private static final byte[] EXIF_ID = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    // What follows the kept segments: an empty scan header and the end of the image
+    private static final byte[] TRAILER = { (byte)MARKER, (byte)SOS, 0, 2, (byte)MARKER, (byte)EOI };
+
+    /**
+     * Read the metadata segments of a local JPEG file
+     *
+     * @param file The file
+     * @return The metadata segments as a JPEG, or null if the file isn't a JPEG
+     * @throws IOException If the file couldn't be read or is cut short
+     */
+    public static byte[] readHeader(File file) throws IOException
+    {
+        SeekableInput in = SeekableInput.forFile(file);
+        try
+        {
+            return readHeader(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the metadata segments of a JPEG from a stream, leaving the stream
+     * positioned after the last segment read. The caller closes the stream.
+     *
+     * @param in The stream
+     * @return The metadata segments as a JPEG, or null if the stream isn't a JPEG
+     * @throws IOException If the stream couldn't be read or is cut short
+     */
+    public static byte[] readHeader(InputStream in) throws IOException
+    {
+        if (in.read() != MARKER || in.read() != SOI)
+        {
+            return null;
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(16 * 1024);
+        header.write(MARKER);
+        header.write(SOI);
+        while (true)
+        {
+            // Markers may be padded with any number of 0xFF fill bytes
+            int b = in.read();
+            if (b != MARKER)
+            {
+                throw (b == -1) ? new EOFException("JPEG ends before its image data") :
+                        new IOException("Bad JPEG marker");
+            }
+            int marker;
+            while ((marker = in.read()) == MARKER)
+            {
+                // fill byte
+            }
+            if (marker == -1)
+            {
+                throw new EOFException("JPEG ends before its image data");
+            }
+            if (marker == SOS || marker == EOI)
+            {
+                // Everything after this is image data
+                break;
+            }
+            if ((marker >= 0xD0 && marker <= 0xD7) || marker == 0x01)
+            {
+                // Markers with no segment
+                continue;
+            }
+
+            int high = in.read();
+            int low = in.read();
+            if (low == -1)
+            {
+                throw new EOFException("JPEG ends before its image data");
+            }
+            int length = (high << 8) | low;
+            if (length < 2)
+            {
+                throw new IOException("Bad JPEG segment length");
+            }
+
+            if (isMetadata(marker))
+            {
+                byte[] segment = new byte[length - 2];
+                readFully(in, segment);
+                header.write(MARKER);
+                header.write(marker);
+                header.write(high);
+                header.write(low);
+                header.write(segment);
+            }
+            else
+            {
+                skipFully(in, length - 2);
+            }
+        }
+
+        header.write(TRAILER);
+        return header.toByteArray();
+    }
+
+    private static boolean isMetadata(int marker)
+    {
+        // SOF0-SOF15, apart from DHT (C4), JPG (C8) and DAC (CC)
+        boolean frame = marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+        return frame || marker == APP1 || marker == APP13 || marker == COM;
+    }
+
+    /**
+     * Wrap an EXIF block (a TIFF structure) in a JPEG APP1 segment, so that
+     * metadata found in other image formats can be parsed as a JPEG header
+     *
+     * @param tiff The EXIF block, starting with the TIFF byte order mark
+     * @return A JPEG holding just the EXIF block
+     * @throws IOException If the block is too big for one segment
+     */
+    public static byte[] wrapExif(byte[] tiff) throws IOException
+    {
+        int length = 2 + EXIF_ID.length + tiff.length;
+        if (length > 0xFFFF)
+        {
+            throw new IOException("EXIF block too large (" + tiff.length + " bytes)");
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(length + 10);
+        header.write(MARKER);
+        header.write(SOI);
+        header.write(MARKER);
+        header.write(APP1);
+        header.write(length >> 8);
+        header.write(length & 0xFF);
+        header.write(EXIF_ID);
+        header.write(tiff);
+        header.write(TRAILER);
+        return header.toByteArray();
+    }
+
+    static void readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int offset = 0;
+        while (offset < buffer.length)
+        {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read == -1)
+            {
+                throw new EOFException("Image ends in the middle of a segment");
+            }
+            offset += read;
+        }
+    }
+
+    static void skipFully(InputStream in, long n) throws IOException
+    {
+        while (n > 0)
+        {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+            {
+                // skip() may give up early, so make sure we aren't at the end
+                if (in.read() == -1)
+                {
+                    throw new EOFException("Image ends in the middle of a segment");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
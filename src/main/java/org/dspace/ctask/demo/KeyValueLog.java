@@ -0,0 +1,305 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * KeyValueLog
+ * -----------
+ * A simple persistent String to String map for tasks that need to remember things
+ * between runs. Every change is appended to a log file as one line, and the file
+ * is read back into memory when the log is opened. When the log holds many more
+ * lines than live keys, closing it rewrites the file with only the live entries.
+ *
+ * Each line is either "key TAB value" for a put or just "key" for a removal, with
+ * tabs, newlines and backslashes escaped. A last line without its newline was
+ * cut off by a crash, and is dropped from the file when the log is opened.
+ *
+ * @author Kim Shepherd
+ */
+public class KeyValueLog
+{
+    // Don't bother compacting small logs
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    private static Logger log = Logger.getLogger(KeyValueLog.class);
+
+    private final File file;
+    private final Map<String, String> entries = new HashMap<String, String>();
+    private Writer writer;
+    private int records = 0;
+
+    /**
+     * Open a log, loading any existing entries from the file
+     *
+     * @param file The log file, which will be created if it doesn't exist
+     * @throws IOException If the file can't be read or opened for writing
+     */
+    public KeyValueLog(File file) throws IOException
+    {
+        this.file = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs())
+        {
+            throw new IOException("Couldn't create directory " + dir);
+        }
+        long complete = file.exists() ? load() : 0;
+        if (file.length() > complete)
+        {
+            // A line cut off by a crash; the next change would be appended onto it
+            log.info("Discarding " + (file.length() - complete) + " bytes of an incomplete line in " + file);
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try
+            {
+                truncate.setLength(complete);
+            }
+            finally
+            {
+                truncate.close();
+            }
+        }
+        writer = open(file, true);
+    }
+
+    /**
+     * @param key The key
+     * @return The value stored for the key, or null if there isn't one
+     */
+    public synchronized String get(String key)
+    {
+        return entries.get(key);
+    }
+
+    /**
+     * Store a value, replacing any previous value for the key
+     *
+     * @param key The key
+     * @param value The value
+     * @throws IOException If the change couldn't be written
+     */
+    public synchronized void put(String key, String value) throws IOException
+    {
+        entries.put(key, value);
+        writer.write(escape(key));
+        writer.write('\t');
+        writer.write(escape(value));
+        writer.write('\n');
+        records++;
+    }
+
+    /**
+     * Remove the value for a key
+     *
+     * @param key The key
+     * @throws IOException If the change couldn't be written
+     */
+    public synchronized void remove(String key) throws IOException
+    {
+        if (entries.remove(key) != null)
+        {
+            writer.write(escape(key));
+            writer.write('\n');
+            records++;
+        }
+    }
+
+    /**
+     * @return A copy of every live entry
+     */
+    public synchronized Map<String, String> getEntries()
+    {
+        return new HashMap<String, String>(entries);
+    }
+
+    /**
+     * @return The number of live entries
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Write any buffered changes to disk
+     *
+     * @throws IOException If the changes couldn't be written
+     */
+    public synchronized void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    /**
+     * Flush and close the log, compacting the file first if it has grown to more
+     * than twice the number of live entries.
+     *
+     * @throws IOException If the log couldn't be written
+     */
+    public synchronized void close() throws IOException
+    {
+        writer.close();
+        if (records > COMPACT_MIN_RECORDS && records > 2 * entries.size())
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Read every complete line of the file
+     *
+     * @return The length of the file up to the end of its last complete line
+     */
+    private long load() throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            long offset = 0;
+            long complete = 0;
+            int b;
+            while ((b = in.read()) != -1)
+            {
+                offset++;
+                if (b != '\n')
+                {
+                    bytes.write(b);
+                    continue;
+                }
+
+                String line = bytes.toString("UTF-8");
+                bytes.reset();
+                complete = offset;
+                int tab = line.indexOf('\t');
+                if (tab < 0)
+                {
+                    entries.remove(unescape(line));
+                }
+                else
+                {
+                    entries.put(unescape(line.substring(0, tab)), unescape(line.substring(tab + 1)));
+                }
+                records++;
+            }
+            return complete;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void compact() throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = open(tmp, false);
+        try
+        {
+            for (Map.Entry<String, String> entry : entries.entrySet())
+            {
+                out.write(escape(entry.getKey()));
+                out.write('\t');
+                out.write(escape(entry.getValue()));
+                out.write('\n');
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!file.delete() || !tmp.renameTo(file))
+        {
+            log.warn("Couldn't replace " + file + " with compacted log " + tmp);
+            return;
+        }
+        log.debug("Compacted " + file + " from " + records + " to " + entries.size() + " records");
+        records = entries.size();
+    }
+
+    private static Writer open(File file, boolean append) throws IOException
+    {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8"));
+    }
+
+    static String escape(String s)
+    {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            String replacement = null;
+            switch (c)
+            {
+                case '\\': replacement = "\\\\"; break;
+                case '\t': replacement = "\\t"; break;
+                case '\n': replacement = "\\n"; break;
+                case '\r': replacement = "\\r"; break;
+                default: break;
+            }
+            if (replacement != null)
+            {
+                if (sb == null)
+                {
+                    sb = new StringBuilder(s.length() + 8);
+                    sb.append(s, 0, i);
+                }
+                sb.append(replacement);
+            }
+            else if (sb != null)
+            {
+                sb.append(c);
+            }
+        }
+        return (sb != null) ? sb.toString() : s;
+    }
+
+    static String unescape(String s)
+    {
+        if (s.indexOf('\\') < 0)
+        {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length())
+            {
+                char next = s.charAt(++i);
+                switch (next)
+                {
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    default: sb.append(next); break;
+                }
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LanguageDetector
+ * ----------------
+ * A small offline language detector. Languages written in their own script
+ * (Russian, Greek, Arabic, Hebrew, Chinese, Japanese, Korean...) are recognised
+ * from the script alone. Latin script text is scored against a character trigram
+ * profile for each language, built when the class is loaded from a list of the
+ * language's most common words, weighted by how common each word is.
+ *
+ * Short texts, or texts that score about the same for two languages, are left
+ * undetected rather than guessed.
+ *
+ * @author Kim Shepherd
+ */
+public class LanguageDetector
+{
+    // Common words for each language, most common first
+    private static final String[][] WORDS = {
+        { "en", "the of and to in a is that for it as was with be by on not he i this are or his from at " +
+                "which but have an they you were her she there one all we their been has more if will would " +
+                "who so no also into other its than only can some time these may such new first should between" },
+        { "de", "der die und in den von zu das mit sich des auf f\u00fcr ist im dem nicht ein eine als auch es an " +
+                "werden aus er hat dass sie nach wird bei einer um am sind noch wie einem \u00fcber einen so zum " +
+                "war haben nur oder aber vor zur bis mehr durch man sein wurde sei k\u00f6nnen diese zwischen" },
+        { "fr", "de la le et les des en un du une que est pour qui dans par plus pas au sur ne se ce il sont " +
+                "avec son ou cette aux \u00e9t\u00e9 mais nous comme elle leur sa ses entre deux fait \u00eatre tout peut ces " +
+                "ont m\u00eame \u00e9tait aussi o\u00f9 dont sans tr\u00e8s apr\u00e8s leurs autres" },
+        { "es", "de la que el en y a los del se las por un para con no una su al es lo como m\u00e1s pero sus le " +
+                "ya o este fue ha entre cuando muy sin sobre tambi\u00e9n me hasta hay donde desde todo nos durante " +
+                "estado todos uno les ni contra otros ese eso ante estos" },
+        { "it", "di e il la che in a per un \u00e8 del non una le si con i da al sono della come gli ma anche lo " +
+                "nel alla pi\u00f9 delle dei ha se questo essere tra loro nella suo stato questa o ci sua dopo molto " +
+                "degli nelle quando stati fatto" },
+        { "nl", "de en van het een in is dat op te zijn met voor niet aan er die maar om ook als bij door hij " +
+                "zo wat nog wordt naar dan uit kan wel tot meer geen over worden heeft al deze was werd onder " +
+                "tussen hun veel zich" },
+        { "pt", "de a o que e do da em um para com n\u00e3o uma os no se na por mais as dos como mas ao ele das \u00e0 " +
+                "seu sua ou quando muito nos j\u00e1 tamb\u00e9m s\u00f3 pelo pela at\u00e9 isso ela entre depois sem mesmo aos " +
+                "seus s\u00e3o foi sobre est\u00e1" },
+    };
+
+    // Languages recognised from their script
+    private static final Map<Character.UnicodeBlock, String> SCRIPTS = new HashMap<Character.UnicodeBlock, String>();
+
+    // Probability of a trigram the profile has never seen
+    private static final double UNSEEN = 1e-5;
+
+    private static final Map<String, Map<String, Double>> profiles = new HashMap<String, Map<String, Double>>();
+
+    static
+    {
+        SCRIPTS.put(Character.UnicodeBlock.CYRILLIC, "ru");
+        SCRIPTS.put(Character.UnicodeBlock.GREEK, "el");
+        SCRIPTS.put(Character.UnicodeBlock.ARABIC, "ar");
+        SCRIPTS.put(Character.UnicodeBlock.HEBREW, "he");
+        SCRIPTS.put(Character.UnicodeBlock.THAI, "th");
+        SCRIPTS.put(Character.UnicodeBlock.DEVANAGARI, "hi");
+        SCRIPTS.put(Character.UnicodeBlock.HANGUL_SYLLABLES, "ko");
+        SCRIPTS.put(Character.UnicodeBlock.HIRAGANA, "ja");
+        SCRIPTS.put(Character.UnicodeBlock.KATAKANA, "ja");
+        SCRIPTS.put(Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS, "zh");
+
+        for (String[] words : WORDS)
+        {
+            profiles.put(words[0], buildProfile(words[1].split(" ")));
+        }
+    }
+
+    private final int minTrigrams;
+    private final double minMargin;
+
+    /**
+     * @param minTrigrams The fewest trigrams a Latin script text needs before a guess is made
+     * @param minMargin How much better, per trigram, the best language has to score than the next
+     */
+    public LanguageDetector(int minTrigrams, double minMargin)
+    {
+        this.minTrigrams = minTrigrams;
+        this.minMargin = minMargin;
+    }
+
+    /**
+     * Detect the language of a text
+     *
+     * @param text The text
+     * @return A two letter language code, or null if the language isn't clear
+     */
+    public String detect(String text)
+    {
+        String script = detectScript(text);
+        if (script != null)
+        {
+            return script;
+        }
+
+        Map<String, Integer> trigrams = new HashMap<String, Integer>();
+        int count = countTrigrams(text, trigrams);
+        if (count < minTrigrams)
+        {
+            return null;
+        }
+
+        String best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        double secondScore = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<String, Map<String, Double>> profile : profiles.entrySet())
+        {
+            double score = score(trigrams, profile.getValue());
+            if (score > bestScore)
+            {
+                secondScore = bestScore;
+                bestScore = score;
+                best = profile.getKey();
+            }
+            else if (score > secondScore)
+            {
+                secondScore = score;
+            }
+        }
+
+        return ((bestScore - secondScore) / count >= minMargin) ? best : null;
+    }
+
+    /**
+     * @param a A language code, e.g. "en" or "en_GB"
+     * @param b Another language code
+     * @return Whether both codes are for the same language, ignoring region
+     */
+    public static boolean sameLanguage(String a, String b)
+    {
+        return a != null && b != null && baseLanguage(a).equals(baseLanguage(b));
+    }
+
+    private static String baseLanguage(String lang)
+    {
+        lang = lang.trim().toLowerCase();
+        int sep = lang.indexOf('_');
+        if (sep < 0)
+        {
+            sep = lang.indexOf('-');
+        }
+        return (sep > 0) ? lang.substring(0, sep) : lang;
+    }
+
+    /**
+     * Find the language of a text written mostly in a script only one language uses
+     */
+    private static String detectScript(String text)
+    {
+        Map<String, Integer> counts = null;
+        int letters = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (!Character.isLetter(c))
+            {
+                continue;
+            }
+            letters++;
+            if (c < 0x0370)
+            {
+                // Latin
+                continue;
+            }
+            String lang = SCRIPTS.get(Character.UnicodeBlock.of(c));
+            if (lang != null)
+            {
+                if (counts == null)
+                {
+                    counts = new HashMap<String, Integer>();
+                }
+                Integer n = counts.get(lang);
+                counts.put(lang, (n == null) ? 1 : n + 1);
+            }
+        }
+        if (counts == null)
+        {
+            return null;
+        }
+
+        // Japanese mixes kana with Chinese characters, so any kana at all means Japanese
+        if (counts.containsKey("ja"))
+        {
+            return "ja";
+        }
+        for (Map.Entry<String, Integer> count : counts.entrySet())
+        {
+            if (count.getValue() * 2 > letters)
+            {
+                return count.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static double score(Map<String, Integer> trigrams, Map<String, Double> profile)
+    {
+        double score = 0;
+        for (Map.Entry<String, Integer> trigram : trigrams.entrySet())
+        {
+            Double p = profile.get(trigram.getKey());
+            score += trigram.getValue() * Math.log((p != null) ? p : UNSEEN);
+        }
+        return score;
+    }
+
+    /**
+     * Count the trigrams of each word in a text, with the word padded by a space
+     * either side so that starts and ends of words count too
+     *
+     * @return The total number of trigrams
+     */
+    private static int countTrigrams(String text, Map<String, Integer> trigrams)
+    {
+        int total = 0;
+        StringBuilder word = new StringBuilder(" ");
+        for (int i = 0; i <= text.length(); i++)
+        {
+            char c = (i < text.length()) ? Character.toLowerCase(text.charAt(i)) : ' ';
+            if (Character.isLetter(c))
+            {
+                word.append(c);
+            }
+            else if (word.length() > 1)
+            {
+                word.append(' ');
+                for (int j = 0; j + 3 <= word.length(); j++)
+                {
+                    String trigram = word.substring(j, j + 3);
+                    Integer n = trigrams.get(trigram);
+                    trigrams.put(trigram, (n == null) ? 1 : n + 1);
+                    total++;
+                }
+                word.setLength(1);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Build a trigram probability profile from a list of words, most common first.
+     * Word frequencies fall off roughly as 1/rank, so each word's trigrams are
+     * weighted that way.
+     */
+    private static Map<String, Double> buildProfile(String[] words)
+    {
+        Map<String, Double> profile = new HashMap<String, Double>();
+        double total = 0;
+        for (int rank = 0; rank < words.length; rank++)
+        {
+            String word = " " + words[rank] + " ";
+            double weight = 1d / (rank + 1);
+            for (int j = 0; j + 3 <= word.length(); j++)
+            {
+                String trigram = word.substring(j, j + 3);
+                Double w = profile.get(trigram);
+                profile.put(trigram, (w == null) ? weight : w + weight);
+                total += weight;
+            }
+        }
+        for (Map.Entry<String, Double> entry : profile.entrySet())
+        {
+            entry.setValue(entry.getValue() / total);
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * LinkCheckExecutor
+ * -----------------
+ * A worker pool shared by all link checker task instances. The number of worker
+ * threads is the global cap on concurrent link probes, and a queue per host
+ * stops any one server from being hit by more than a few probes at a time: a
+ * host's checks are only handed to the pool while it has fewer than its share
+ * running, so checks waiting for a busy host don't hold up workers that could
+ * be checking other hosts.
+ *
+ * Both limits are read from [dspace]/config/modules/linkchecker.cfg:
+ *
+ * linkchecker.threads = 8
+ * linkchecker.threads.perhost = 2
+ *
+ * @author Kim Shepherd
+ */
+public class LinkCheckExecutor
+{
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    private static LinkCheckExecutor instance = null;
+
+    private static Logger log = Logger.getLogger(LinkCheckExecutor.class);
+
+    private final ExecutorService pool;
+    private final int threads;
+    private final int perHost;
+    private final ConcurrentHashMap<String, HostQueue> hostQueues = new ConcurrentHashMap<String, HostQueue>();
+
+    private LinkCheckExecutor(int threads, int perHost)
+    {
+        this.threads = threads;
+        this.perHost = perHost;
+        this.pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("linkchecker"));
+    }
+
+    /**
+     * Get the shared executor, creating it from configuration on first use
+     *
+     * @return The shared link check executor
+     */
+    public static synchronized LinkCheckExecutor getInstance()
+    {
+        if (instance == null)
+        {
+            int threads = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.threads", 8);
+            int perHost = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.threads.perhost", 2);
+            instance = new LinkCheckExecutor(Math.max(1, threads), Math.max(1, perHost));
+            log.debug("Link check pool started with " + threads + " threads, " + perHost + " per host");
+        }
+        return instance;
+    }
+
+    /**
+     * Submit a check of the given URL. The check runs on the shared pool as soon
+     * as fewer than the per-host limit of checks of the URL's host are running.
+     *
+     * @param url The URL being checked, used to find its host
+     * @param check The work to do for the URL
+     * @return A future holding the result of the check
+     */
+    public <T> Future<T> submit(String url, Callable<T> check)
+    {
+        final HostQueue queue = getHostQueue(hostOf(url));
+        FutureTask<T> task = new FutureTask<T>(check)
+        {
+            @Override
+            protected void done()
+            {
+                // Runs when the check finishes, or is cancelled while waiting
+                queue.finished(this);
+            }
+        };
+        queue.submit(task);
+        return task;
+    }
+
+    /**
+     * @return The global cap on concurrent probes
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return The cap on concurrent probes against a single host
+     */
+    public int getPerHost()
+    {
+        return perHost;
+    }
+
+    private HostQueue getHostQueue(String host)
+    {
+        HostQueue queue = hostQueues.get(host);
+        if (queue == null)
+        {
+            HostQueue created = new HostQueue();
+            queue = hostQueues.putIfAbsent(host, created);
+            if (queue == null)
+            {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Get the lowercased host part of a URL. Anything that doesn't parse is
+     * grouped under the empty host.
+     *
+     * @param url The URL
+     * @return The host, or "" if there isn't one
+     */
+    static String hostOf(String url)
+    {
+        try
+        {
+            String host = new URL(url).getHost();
+            return (host != null) ? host.toLowerCase() : "";
+        }
+        catch (MalformedURLException e)
+        {
+            return "";
+        }
+    }
+
+    /**
+     * The checks of one host: those handed to the pool, and those waiting for one of them to finish
+     */
+    private class HostQueue
+    {
+        private final LinkedList<FutureTask<?>> waiting = new LinkedList<FutureTask<?>>();
+        private final Set<FutureTask<?>> running = new HashSet<FutureTask<?>>();
+
+        private synchronized void submit(FutureTask<?> task)
+        {
+            if (running.size() < perHost)
+            {
+                running.add(task);
+                pool.execute(task);
+            }
+            else
+            {
+                waiting.add(task);
+            }
+        }
+
+        private synchronized void finished(FutureTask<?> task)
+        {
+            if (!running.remove(task))
+            {
+                // Cancelled before it was handed to the pool
+                waiting.remove(task);
+                return;
+            }
+            // Hand on the next check that hasn't been cancelled meanwhile
+            while (!waiting.isEmpty())
+            {
+                FutureTask<?> next = waiting.removeFirst();
+                if (!next.isDone())
+                {
+                    running.add(next);
+                    pool.execute(next);
+                    break;
+                }
+            }
+        }
+    }
+}
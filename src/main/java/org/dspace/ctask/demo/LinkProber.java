@@ -0,0 +1,273 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LinkProber
+ * ----------
+ * Fetches the HTTP response code for a URL on behalf of the link checkers.
+ *
+ * A HEAD request is sent first, falling back to GET for servers that don't accept
+ * HEAD. Connections are never explicitly disconnected and response bodies are
+ * closed rather than abandoned, so the JVM's keep-alive cache can reuse sockets
+ * across items.
+ *
+ * Connect and read timeouts are configured in [dspace]/config/modules/linkchecker.cfg.
+ * When adaptive timeouts are enabled, the timeouts for each host shrink towards a
+ * multiple of the latency observed for that host. A response that overruns the
+ * adapted read timeout is retried once with the full configured timeout, so slow
+ * hosts aren't reported as broken. A host that repeatedly refuses or times out
+ * connections is given the minimum connect timeout.
+ *
+ * @author Kim Shepherd
+ */
+public class LinkProber
+{
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    // Weight given to each new latency sample in the per-host moving average
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    // Consecutive connection failures before a host is treated as dead
+    private static final int DEAD_HOST_FAILURES = 2;
+
+    private static LinkProber instance = null;
+
+    private static Logger log = Logger.getLogger(LinkProber.class);
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int minTimeout;
+    private final boolean adaptive;
+    private final double multiplier;
+    private final boolean headFirst;
+
+    private final ConcurrentHashMap<String, HostLatency> hosts = new ConcurrentHashMap<String, HostLatency>();
+
+    private LinkProber()
+    {
+        connectTimeout = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.timeout.connect", 5000);
+        readTimeout = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.timeout.read", 10000);
+        minTimeout = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.timeout.min", 1000);
+        adaptive = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "linkchecker.timeout.adaptive", true);
+        multiplier = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.timeout.multiplier", 4);
+        headFirst = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "linkchecker.head", true);
+    }
+
+    /**
+     * Get the shared prober, creating it from configuration on first use
+     *
+     * @return The shared link prober
+     */
+    public static synchronized LinkProber getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new LinkProber();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the response code for a URL
+     *
+     * @param url The URL to probe
+     * @return The HTTP response code (e.g. 200 / 301 / 404 / 500)
+     * @throws IOException If the URL could not be opened
+     */
+    public int probe(String url) throws IOException
+    {
+        String host = LinkCheckExecutor.hostOf(url);
+        if (!HostResolver.isResolvable(host))
+        {
+            throw new UnknownHostException(host);
+        }
+        HostLatency latency = getHostLatency(host);
+
+        int code;
+        if (headFirst)
+        {
+            code = request(url, "HEAD", latency);
+            if ((code == HttpURLConnection.HTTP_BAD_METHOD) ||
+                (code == HttpURLConnection.HTTP_NOT_IMPLEMENTED) ||
+                (code == HttpURLConnection.HTTP_BAD_REQUEST))
+            {
+                // Some servers won't answer HEAD properly, so ask again with GET
+                log.debug("HEAD refused by " + url + " (" + code + "), retrying with GET");
+                code = request(url, "GET", latency);
+            }
+        }
+        else
+        {
+            code = request(url, "GET", latency);
+        }
+
+        return code;
+    }
+
+    private int request(String url, String method, HostLatency latency) throws IOException
+    {
+        int timeout = latency.getReadTimeout();
+        try
+        {
+            return request(url, method, latency, timeout);
+        }
+        catch (SocketTimeoutException ste)
+        {
+            if (timeout >= readTimeout)
+            {
+                throw ste;
+            }
+            // The adapted timeout was too tight for this response, so give the host
+            // the full configured timeout before reporting it as broken
+            log.debug("Retrying " + url + " with full read timeout");
+            return request(url, method, latency, readTimeout);
+        }
+    }
+
+    private int request(String url, String method, HostLatency latency, int timeout) throws IOException
+    {
+        URLConnection uc = new URL(url).openConnection();
+        if (!(uc instanceof HttpURLConnection))
+        {
+            throw new IOException("Not an HTTP URL: " + url);
+        }
+
+        HttpURLConnection connection = (HttpURLConnection)uc;
+        connection.setConnectTimeout(latency.getConnectTimeout());
+        connection.setReadTimeout(timeout);
+        connection.setRequestMethod(method);
+
+        try
+        {
+            connection.connect();
+        }
+        catch (ConnectException ce)
+        {
+            latency.connectFailure();
+            throw ce;
+        }
+        catch (SocketTimeoutException ste)
+        {
+            latency.connectFailure();
+            throw ste;
+        }
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            int code = connection.getResponseCode();
+            latency.response(System.currentTimeMillis() - start);
+            release(connection, code);
+            return code;
+        }
+        catch (SocketTimeoutException ste)
+        {
+            latency.response(timeout);
+            throw ste;
+        }
+    }
+
+    /**
+     * Close the response body so the underlying socket goes back to the keep-alive
+     * cache. Calling disconnect() instead would close the socket.
+     */
+    private void release(HttpURLConnection connection, int code)
+    {
+        try
+        {
+            InputStream body = (code >= 400) ? connection.getErrorStream() : connection.getInputStream();
+            if (body != null)
+            {
+                body.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Couldn't release connection: " + e.getMessage());
+        }
+    }
+
+    private HostLatency getHostLatency(String host)
+    {
+        HostLatency latency = hosts.get(host);
+        if (latency == null)
+        {
+            HostLatency created = new HostLatency();
+            latency = hosts.putIfAbsent(host, created);
+            if (latency == null)
+            {
+                latency = created;
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * Latency observed for a single host, and the timeouts derived from it
+     */
+    private class HostLatency
+    {
+        // Moving average of response time in milliseconds, or -1 before the first response
+        private double average = -1;
+        private int failures = 0;
+
+        synchronized void response(long millis)
+        {
+            average = (average < 0) ? millis : (LATENCY_WEIGHT * millis) + ((1 - LATENCY_WEIGHT) * average);
+            failures = 0;
+        }
+
+        synchronized void connectFailure()
+        {
+            failures++;
+        }
+
+        synchronized int getConnectTimeout()
+        {
+            if (!adaptive)
+            {
+                return connectTimeout;
+            }
+            if (failures >= DEAD_HOST_FAILURES)
+            {
+                // Dead or unreachable: don't spend long finding out again
+                return minTimeout;
+            }
+            return scaled(connectTimeout);
+        }
+
+        synchronized int getReadTimeout()
+        {
+            return adaptive ? scaled(readTimeout) : readTimeout;
+        }
+
+        private int scaled(int max)
+        {
+            if (average < 0)
+            {
+                return max;
+            }
+            int timeout = (int)(average * multiplier);
+            return Math.max(minTimeout, Math.min(max, timeout));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.util.Collection;
+
+/**
+ * LinkScanner
+ * -----------
+ * Finds links anywhere in a piece of text, such as a citation or an abstract, in a
+ * single pass and without regular expressions. Recognised links are:
+ *
+ *  - http:// and https:// URLs
+ *  - doi:10.xxxx/... identifiers, returned as https://doi.org/10.xxxx/...
+ *  - hdl:xxxx/... handles, returned as http://hdl.handle.net/xxxx/...
+ *
+ * A link must start at a word boundary and runs until whitespace or a character that
+ * can't appear in a URL. Trailing punctuation such as a full stop at the end of a
+ * sentence, or a closing bracket with no matching opening bracket, is dropped.
+ * The only Strings created are the links themselves.
+ *
+ * @author Kim Shepherd
+ */
+public class LinkScanner
+{
+    private static final String HTTP = "http://";
+    private static final String HTTPS = "https://";
+    private static final String DOI = "doi:";
+    private static final String HDL = "hdl:";
+
+    private static final String DOI_RESOLVER = "https://doi.org/";
+    private static final String HANDLE_RESOLVER = "http://hdl.handle.net/";
+
+    /**
+     * Find all the links in a piece of text
+     *
+     * @param text The text to scan
+     * @param links The collection to add normalised links to
+     * @return The number of links found
+     */
+    public int scan(String text, Collection<String> links)
+    {
+        // Every kind of link we look for contains a colon
+        int colon = text.indexOf(':');
+        if (colon < 0)
+        {
+            return 0;
+        }
+
+        int found = 0;
+        int length = text.length();
+        // No link prefix is longer than "https:", so start looking just before the first colon
+        int i = Math.max(0, colon - 5);
+        while (i < length)
+        {
+            char c = text.charAt(i);
+            if ((c == 'h' || c == 'H' || c == 'd' || c == 'D') && (i == 0 || !isWordChar(text.charAt(i - 1))))
+            {
+                int end = -1;
+                if (text.regionMatches(true, i, HTTP, 0, HTTP.length()))
+                {
+                    end = findEnd(text, i + HTTP.length());
+                    if (end > i + HTTP.length())
+                    {
+                        links.add(lowerScheme(text, i, end, HTTP.length()));
+                        found++;
+                    }
+                }
+                else if (text.regionMatches(true, i, HTTPS, 0, HTTPS.length()))
+                {
+                    end = findEnd(text, i + HTTPS.length());
+                    if (end > i + HTTPS.length())
+                    {
+                        links.add(lowerScheme(text, i, end, HTTPS.length()));
+                        found++;
+                    }
+                }
+                else if (text.regionMatches(true, i, DOI, 0, DOI.length()))
+                {
+                    int start = skipSpaces(text, i + DOI.length());
+                    end = findEnd(text, start);
+                    if (end > start && text.startsWith("10.", start))
+                    {
+                        links.add(DOI_RESOLVER + text.substring(start, end));
+                        found++;
+                    }
+                }
+                else if (text.regionMatches(true, i, HDL, 0, HDL.length()))
+                {
+                    int start = skipSpaces(text, i + HDL.length());
+                    end = findEnd(text, start);
+                    if (end > start && text.indexOf('/', start) > start && text.indexOf('/', start) < end)
+                    {
+                        links.add(HANDLE_RESOLVER + text.substring(start, end));
+                        found++;
+                    }
+                }
+
+                if (end > i)
+                {
+                    i = end;
+                    continue;
+                }
+            }
+            i++;
+        }
+        return found;
+    }
+
+    /**
+     * Find the end of a link starting at the given position
+     */
+    private static int findEnd(String text, int start)
+    {
+        int length = text.length();
+        int end = start;
+        int openBrackets = 0;
+        while (end < length)
+        {
+            char c = text.charAt(end);
+            if (c <= ' ' || c == '"' || c == '<' || c == '>' || c == '{' || c == '}' ||
+                c == '|' || c == '\\' || c == '^' || c == '`' || Character.isWhitespace(c))
+            {
+                break;
+            }
+            if (c == '(')
+            {
+                openBrackets++;
+            }
+            else if (c == ')')
+            {
+                if (openBrackets == 0)
+                {
+                    // Closes a bracket opened before the link
+                    break;
+                }
+                openBrackets--;
+            }
+            end++;
+        }
+
+        // Drop punctuation that ends the sentence rather than the link
+        while (end > start)
+        {
+            char c = text.charAt(end - 1);
+            if (c == '.' || c == ',' || c == ';' || c == ':' || c == '!' || c == '?' || c == '\'' || c == ']')
+            {
+                end--;
+            }
+            else
+            {
+                break;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSpaces(String text, int start)
+    {
+        int i = start;
+        while (i < text.length() && text.charAt(i) == ' ')
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Get a link with its scheme lowercased, only copying it once
+     */
+    private static String lowerScheme(String text, int start, int end, int schemeLength)
+    {
+        for (int i = start; i < start + schemeLength; i++)
+        {
+            if (Character.isUpperCase(text.charAt(i)))
+            {
+                return text.substring(start, start + schemeLength).toLowerCase() +
+                        text.substring(start + schemeLength, end);
+            }
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isWordChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * LinkScheduler
+ * -------------
+ * Batches link checks across many items so that hosts are checked at a steady,
+ * polite rate instead of in bursts. URLs from a window of items are grouped by
+ * host and submitted to the LinkCheckExecutor in round-robin order across hosts.
+ * A check that will reach a host is only submitted once it has taken a token from
+ * that host's TokenBucket; the scheduler waits for tokens itself, passing over
+ * hosts that have none left, so the executor's workers never wait for a slow
+ * host. A host that answers 429 or 503 has its rate halved for the rest of the run. URLs
+ * that were turned away like this aren't recorded; they are checked again, at the
+ * slower rate, once the rest of the window has been sent, up to
+ * linkchecker.scheduler.retries times.
+ *
+ * Item reports are written in item order once the window's checks are finished.
+ *
+ * Configured in [dspace]/config/modules/linkchecker.cfg:
+ *
+ * linkchecker.scheduler = true
+ * linkchecker.scheduler.window = 100
+ * linkchecker.scheduler.host.rate = 2
+ * linkchecker.scheduler.host.burst = 4
+ * linkchecker.scheduler.retries = 3
+ *
+ * @author Kim Shepherd
+ */
+public class LinkScheduler
+{
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    // Never slow a throttled host below one request every this many seconds
+    private static final double MIN_RATE = 1d / 60d;
+
+    private static Logger log = Logger.getLogger(LinkScheduler.class);
+
+    private final BasicLinkChecker checker;
+    private final int window;
+    private final double rate;
+    private final double burst;
+    private final int retries;
+
+    // One bucket per host for this run, so a host that throttled a previous run starts at the full rate again
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private final List<PendingItem> items = new ArrayList<PendingItem>();
+
+    /**
+     * @param checker The link checker whose checkURL and getResponseStatus will be used
+     */
+    public LinkScheduler(BasicLinkChecker checker)
+    {
+        this.checker = checker;
+        window = Math.max(1, ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.scheduler.window", 100));
+        rate = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.scheduler.host.rate", 2);
+        burst = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.scheduler.host.burst", 4);
+        retries = Math.max(0, ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.scheduler.retries", 3));
+    }
+
+    /**
+     * @return True if link checkers should use the scheduler when curating containers
+     */
+    public static boolean isEnabled()
+    {
+        return ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "linkchecker.scheduler", false);
+    }
+
+    /**
+     * Add an item's URLs to the current window, checking the window if it is full
+     *
+     * @param handle The item handle, for the report
+     * @param urls The URLs to check
+     */
+    public void add(String handle, List<String> urls)
+    {
+        items.add(new PendingItem(handle, urls));
+        if (items.size() >= window)
+        {
+            dispatch();
+        }
+    }
+
+    /**
+     * Check whatever is left in the current window
+     */
+    public void finish()
+    {
+        if (!items.isEmpty())
+        {
+            dispatch();
+        }
+    }
+
+    private void dispatch()
+    {
+        List<PendingCheck> round = new ArrayList<PendingCheck>();
+        for (PendingItem item : items)
+        {
+            item.checks = new ArrayList<Future<BasicLinkChecker.URLCheck>>(item.urls.size());
+            for (int i = 0; i < item.urls.size(); i++)
+            {
+                String url = item.urls.get(i);
+                item.checks.add(null);
+                round.add(new PendingCheck(item, i, url, LinkCheckExecutor.hostOf(url)));
+            }
+        }
+
+        // Send them, then send whatever was throttled again once its host has slowed down.
+        // After the last attempt a throttled URL is reported as it is.
+        for (int attempt = 0; !round.isEmpty(); attempt++)
+        {
+            Map<String, LinkedList<PendingCheck>> byHost = groupByHost(round);
+            log.debug("Dispatching " + round.size() + " URLs across " + byHost.size() + " hosts");
+            send(byHost);
+            List<PendingCheck> throttled = new ArrayList<PendingCheck>();
+            if (attempt < retries && !Thread.currentThread().isInterrupted())
+            {
+                for (PendingCheck pending : round)
+                {
+                    if (await(pending) && pending.throttled)
+                    {
+                        throttled.add(pending);
+                    }
+                }
+                if (!throttled.isEmpty())
+                {
+                    log.debug("Checking " + throttled.size() + " throttled URLs again");
+                }
+            }
+            round = throttled;
+        }
+
+        // Report each item in order as its checks finish
+        for (PendingItem item : items)
+        {
+            StringBuilder results = new StringBuilder();
+            results.append("Item: ").append(item.handle).append("\n");
+            int itemStatus = checker.collectChecks(item.urls, item.checks, results);
+            checker.reportItem(results.toString(), itemStatus);
+        }
+        items.clear();
+    }
+
+    /**
+     * @return The checks grouped by host, keeping each host's URLs in item order
+     */
+    private static Map<String, LinkedList<PendingCheck>> groupByHost(List<PendingCheck> checks)
+    {
+        Map<String, LinkedList<PendingCheck>> byHost = new LinkedHashMap<String, LinkedList<PendingCheck>>();
+        for (PendingCheck pending : checks)
+        {
+            LinkedList<PendingCheck> hostChecks = byHost.get(pending.host);
+            if (hostChecks == null)
+            {
+                hostChecks = new LinkedList<PendingCheck>();
+                byHost.put(pending.host, hostChecks);
+            }
+            hostChecks.add(pending);
+        }
+        return byHost;
+    }
+
+    /**
+     * Submit the checks, taking one from each host in turn so no host's URLs queue
+     * up together. A host without a token is passed over until it has one, and this
+     * thread only sleeps when every host left is waiting. If interrupted, the checks
+     * not yet sent are cancelled.
+     *
+     * @param byHost The checks to send, by host; emptied as they are sent
+     */
+    private void send(Map<String, LinkedList<PendingCheck>> byHost)
+    {
+        LinkCheckExecutor executor = LinkCheckExecutor.getInstance();
+        try
+        {
+            while (!byHost.isEmpty())
+            {
+                long soonest = Long.MAX_VALUE;
+                boolean sent = false;
+                for (Iterator<LinkedList<PendingCheck>> hi = byHost.values().iterator(); hi.hasNext(); )
+                {
+                    LinkedList<PendingCheck> queue = hi.next();
+                    PendingCheck pending = queue.getFirst();
+                    long wait = reachesHost(pending) ? getBucket(pending.host).tryAcquire(1) : 0;
+                    if (wait > 0)
+                    {
+                        soonest = Math.min(soonest, wait);
+                        continue;
+                    }
+                    queue.removeFirst();
+                    if (queue.isEmpty())
+                    {
+                        hi.remove();
+                    }
+                    pending.throttled = false;
+                    pending.item.checks.set(pending.index, executor.submit(pending.url, probe(pending)));
+                    sent = true;
+                }
+                if (!sent)
+                {
+                    // Every host left is waiting for its next token
+                    Thread.sleep(soonest / 1000000L, (int)(soonest % 1000000L));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            for (LinkedList<PendingCheck> queue : byHost.values())
+            {
+                for (PendingCheck pending : queue)
+                {
+                    FutureTask<BasicLinkChecker.URLCheck> unsent = new FutureTask<BasicLinkChecker.URLCheck>(probe(pending));
+                    unsent.cancel(false);
+                    pending.item.checks.set(pending.index, unsent);
+                }
+            }
+            byHost.clear();
+        }
+    }
+
+    /**
+     * @return Whether checking the URL will send a request to its host, so needs a token:
+     *         not if its status is already known or the host doesn't resolve
+     */
+    private boolean reachesHost(PendingCheck pending)
+    {
+        return !checker.getCache().contains(pending.url) && HostResolver.isResolvable(pending.host);
+    }
+
+    /**
+     * @param pending The check, whose token has already been taken if it needs one
+     * @return The check: the URL is probed once, and reported through the checker's checkURL()
+     */
+    private Callable<BasicLinkChecker.URLCheck> probe(final PendingCheck pending)
+    {
+        return new Callable<BasicLinkChecker.URLCheck>()
+        {
+            public BasicLinkChecker.URLCheck call() throws Exception
+            {
+                int status = checker.getResponseStatus(pending.url);
+                if (LinkStatusCache.isThrottled(status))
+                {
+                    slowDown(pending.host, getBucket(pending.host));
+                    pending.throttled = true;
+                }
+                return checker.check(pending.url, status);
+            }
+        };
+    }
+
+    /**
+     * Wait for a submitted check to finish
+     *
+     * @return False if it didn't finish normally
+     */
+    private boolean await(PendingCheck pending)
+    {
+        try
+        {
+            pending.item.checks.get(pending.index).get();
+            return true;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException ee)
+        {
+            // Reported with the item
+            return false;
+        }
+    }
+
+    private TokenBucket getBucket(String host)
+    {
+        TokenBucket bucket = buckets.get(host);
+        if (bucket == null)
+        {
+            TokenBucket created = new TokenBucket(rate, burst);
+            bucket = buckets.putIfAbsent(host, created);
+            if (bucket == null)
+            {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private void slowDown(String host, TokenBucket bucket)
+    {
+        synchronized (bucket)
+        {
+            double slower = Math.max(MIN_RATE, bucket.getRate() / 2);
+            bucket.setRate(slower);
+            // Any burst left over would send the retries straight back
+            bucket.drain();
+            log.info("Throttled by " + host + ", slowing to " + slower + " requests per second");
+        }
+    }
+
+    /**
+     * An item waiting in the window
+     */
+    private static class PendingItem
+    {
+        private final String handle;
+        private final List<String> urls;
+        private List<Future<BasicLinkChecker.URLCheck>> checks;
+
+        private PendingItem(String handle, List<String> urls)
+        {
+            this.handle = handle;
+            this.urls = urls;
+        }
+    }
+
+    /**
+     * A single URL of a pending item
+     */
+    private static class PendingCheck
+    {
+        private final PendingItem item;
+        private final int index;
+        private final String url;
+        private final String host;
+        // Set by the check if the host turned it away, so it should be sent again
+        private volatile boolean throttled = false;
+
+        private PendingCheck(PendingItem item, int index, String url, String host)
+        {
+            this.item = item;
+            this.index = index;
+            this.url = url;
+            this.host = host;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * LinkStateStore
+ * --------------
+ * Remembers the outcome of link checks between runs, so a scheduled link check only
+ * probes URLs whose last result is stale. For each URL we keep the last status, when
+ * it was checked, and how many checks in a row have failed.
+ *
+ * A URL that last returned a 20x status is trusted for linkchecker.state.fresh.hours.
+ * A URL that failed is re-checked on a backoff schedule: after
+ * linkchecker.state.retry.minutes, then twice that, and so on up to
+ * linkchecker.state.retry.max.hours.
+ *
+ * The store is switched off unless linkchecker.state = true in
+ * [dspace]/config/modules/linkchecker.cfg.
+ *
+ * @author Kim Shepherd
+ */
+public class LinkStateStore
+{
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    private static final long MINUTE = 60L * 1000L;
+    private static final long HOUR = 60L * MINUTE;
+
+    private static LinkStateStore instance = null;
+    private static boolean initialised = false;
+    // Runs using the open store
+    private static int users = 0;
+
+    private static Logger log = Logger.getLogger(LinkStateStore.class);
+
+    private final KeyValueLog states;
+    private final long freshFor;
+    private final long retryAfter;
+    private final long maxRetryAfter;
+
+    private LinkStateStore(KeyValueLog states)
+    {
+        this.states = states;
+        freshFor = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.state.fresh.hours", 168) * HOUR;
+        retryAfter = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.state.retry.minutes", 60) * MINUTE;
+        maxRetryAfter = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.state.retry.max.hours", 168) * HOUR;
+    }
+
+    /**
+     * Open the shared store for a run, or join the run that already has it open.
+     * Each run that gets it must call close() when it ends.
+     *
+     * @return The shared store, or null if the store is switched off or couldn't be opened
+     */
+    public static synchronized LinkStateStore open()
+    {
+        if (!initialised)
+        {
+            initialised = true;
+            if (ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "linkchecker.state", false))
+            {
+                String path = ConfigurationManager.getProperty(PLUGIN_PREFIX, "linkchecker.state.file");
+                if (path == null)
+                {
+                    path = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" +
+                            File.separator + "linkchecker.state";
+                }
+
+                try
+                {
+                    instance = new LinkStateStore(new KeyValueLog(new File(path)));
+                    log.debug("Opened link state store " + path + " with " + instance.states.size() + " URLs");
+                }
+                catch (IOException e)
+                {
+                    log.info("Couldn't open link state store " + path + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        if (instance != null)
+        {
+            users++;
+        }
+        return instance;
+    }
+
+    /**
+     * Get the stored status of a URL if it is still fresh enough to use
+     *
+     * @param key The normalised URL
+     * @return The stored status, or null if the URL needs to be checked again
+     */
+    public Integer getFreshStatus(String key)
+    {
+        long[] state = parse(states.get(key));
+        if (state == null)
+        {
+            return null;
+        }
+
+        long age = System.currentTimeMillis() - state[1];
+        return (age < getMaxAge((int) state[2])) ? Integer.valueOf((int) state[0]) : null;
+    }
+
+    /**
+     * Record the result of checking a URL
+     *
+     * @param key The normalised URL
+     * @param status The status returned
+     */
+    public void record(String key, int status)
+    {
+        int failures = 0;
+        if (!isOK(status))
+        {
+            long[] previous = parse(states.get(key));
+            failures = (previous == null) ? 1 : (int) previous[2] + 1;
+        }
+
+        try
+        {
+            states.put(key, status + "," + System.currentTimeMillis() + "," + failures);
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't record link state for " + key + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Write recorded states to disk
+     */
+    public void flush()
+    {
+        try
+        {
+            states.flush();
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't write link state store: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * End a run's use of the store. Once no run is using it, it is written out,
+     * compacted if it has grown, and closed; the next run opens it again.
+     */
+    public void close()
+    {
+        synchronized (LinkStateStore.class)
+        {
+            if (--users > 0)
+            {
+                flush();
+                return;
+            }
+            instance = null;
+            initialised = false;
+            closeLog();
+        }
+    }
+
+    private void closeLog()
+    {
+        try
+        {
+            states.close();
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't close link state store: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @param state A stored state, "status,checked,failures"
+     * @return The status, when it was checked and the failures, or null if there is
+     *         no state or it can't be read, so that the URL is checked again
+     */
+    private static long[] parse(String state)
+    {
+        if (state == null)
+        {
+            return null;
+        }
+        String[] parts = state.split(",");
+        if (parts.length != 3)
+        {
+            return null;
+        }
+        try
+        {
+            return new long[] {Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2])};
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private long getMaxAge(int failures)
+    {
+        if (failures == 0)
+        {
+            return freshFor;
+        }
+
+        // Double the wait after each consecutive failure, up to the maximum
+        long wait = retryAfter;
+        for (int i = 1; i < failures && wait < maxRetryAfter; i++)
+        {
+            wait *= 2;
+        }
+        return Math.min(wait, maxRetryAfter);
+    }
+
+    private static boolean isOK(int status)
+    {
+        return (status >= 200) && (status < 300);
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * LinkStatusCache
+ * ---------------
+ * Remembers the response status of every URL checked, so a URL that appears in
+ * thousands of items is only requested once. There is one cache, shared by every
+ * link checker instance, so the same URL isn't requested again when the curator
+ * runs a task item by item, or runs several link checking tasks. A status is only
+ * used for linkchecker.cache.ttl.minutes after it was fetched; results kept
+ * for longer, between restarts, are the LinkStateStore's job.
+ *
+ * Lookups are keyed on a normalised form of the URL. If a URL is already being
+ * checked when another item asks for it, the second caller waits for the first
+ * request instead of sending its own.
+ *
+ * The number of remembered URLs is capped by linkchecker.cache.size in
+ * [dspace]/config/modules/linkchecker.cfg; the least recently used are dropped first.
+ * A 429 or 503 answer says the server is busy rather than anything about the URL,
+ * so it isn't remembered.
+ *
+ * @author Kim Shepherd
+ */
+public class LinkStatusCache
+{
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_UNAVAILABLE = 503;
+
+    private static LinkStatusCache instance = null;
+
+    private static Logger log = Logger.getLogger(LinkStatusCache.class);
+
+    private final boolean enabled;
+    private final long ttl;
+    private final Map<String, CachedStatus> statuses;
+    private final Map<String, FutureTask<Integer>> inFlight = new HashMap<String, FutureTask<Integer>>();
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * A status and when it was fetched
+     */
+    private static class CachedStatus
+    {
+        private final int status;
+        private final long fetched;
+
+        private CachedStatus(int status, long fetched)
+        {
+            this.status = status;
+            this.fetched = fetched;
+        }
+    }
+
+    private LinkStatusCache(final int maxSize, boolean enabled, long ttl)
+    {
+        this.enabled = enabled;
+        this.ttl = ttl;
+
+        // An access-ordered LinkedHashMap gives us LRU eviction
+        this.statuses = new LinkedHashMap<String, CachedStatus>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatus> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the shared cache, creating it from configuration on first use
+     *
+     * @return The link status cache
+     */
+    public static synchronized LinkStatusCache getInstance()
+    {
+        if (instance == null)
+        {
+            int maxSize = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.cache.size", 10000);
+            boolean enabled = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "linkchecker.cache", true);
+            long ttl = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "linkchecker.cache.ttl.minutes", 60) * 60L * 1000L;
+            instance = new LinkStatusCache(Math.max(1, maxSize), enabled, Math.max(0, ttl));
+        }
+        return instance;
+    }
+
+    /**
+     * Get the status of a URL, running the probe only if no other caller has
+     * already checked, or is currently checking, the same URL.
+     *
+     * @param url The URL
+     * @param probe Fetches the status when it isn't already known
+     * @return The status of the URL
+     */
+    public int getStatus(String url, Callable<Integer> probe)
+    {
+        if (!enabled)
+        {
+            return call(url, probe);
+        }
+
+        String key = normalise(url);
+        FutureTask<Integer> task;
+        boolean owner = false;
+
+        synchronized (this)
+        {
+            CachedStatus cached = get(key);
+            if (cached != null)
+            {
+                hits++;
+                return cached.status;
+            }
+
+            task = inFlight.get(key);
+            if (task == null)
+            {
+                misses++;
+                task = new FutureTask<Integer>(probe);
+                inFlight.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner)
+        {
+            // Run the probe on this thread; any concurrent callers wait on the same task
+            task.run();
+        }
+
+        int status = get(url, task);
+
+        if (owner)
+        {
+            synchronized (this)
+            {
+                inFlight.remove(key);
+                if (!isThrottled(status))
+                {
+                    statuses.put(key, new CachedStatus(status, System.currentTimeMillis()));
+                }
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Find out whether the status of a URL is already known, without checking it
+     *
+     * @param url The URL
+     * @return True if a status for the URL is cached
+     */
+    public synchronized boolean contains(String url)
+    {
+        return enabled && get(normalise(url)) != null;
+    }
+
+    /**
+     * @return The lookups so far, as {hits, misses}, to be passed to getStatistics() at the end of a run
+     */
+    public synchronized long[] getCounts()
+    {
+        return new long[] {hits, misses};
+    }
+
+    /**
+     * @param start The counts at the start of the run, from getCounts()
+     * @return A short summary of cache usage since then, for reports
+     */
+    public synchronized String getStatistics(long[] start)
+    {
+        return "Link cache: " + (hits - start[0]) + " hits, " + (misses - start[1]) + " misses, " +
+                statuses.size() + " URLs held";
+    }
+
+    /**
+     * @param status An HTTP response code
+     * @return True if the server turned the request away for now (429 or 503), so it should be asked again later
+     */
+    static boolean isThrottled(int status)
+    {
+        return status == HTTP_TOO_MANY_REQUESTS || status == HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * @return The cached status for a key, or null if there is none or it has expired
+     */
+    private CachedStatus get(String key)
+    {
+        CachedStatus cached = statuses.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.fetched > ttl)
+        {
+            statuses.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    private int call(String url, Callable<Integer> probe)
+    {
+        FutureTask<Integer> task = new FutureTask<Integer>(probe);
+        task.run();
+        return get(url, task);
+    }
+
+    private int get(String url, FutureTask<Integer> task)
+    {
+        try
+        {
+            return task.get().intValue();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        catch (ExecutionException ee)
+        {
+            log.debug("Bad link: " + url + ": " + ee.getCause());
+            return 0;
+        }
+    }
+
+    /**
+     * Normalise a URL for use as a cache key: lowercase the scheme and host, drop a
+     * default port and any fragment, and give an empty path a trailing slash.
+     * URLs that don't parse are used as they are.
+     *
+     * @param url The URL
+     * @return The normalised URL
+     */
+    static String normalise(String url)
+    {
+        String trimmed = url.trim();
+        try
+        {
+            URL u = new URL(trimmed);
+            String protocol = u.getProtocol().toLowerCase();
+            int port = u.getPort();
+            if (port == u.getDefaultPort())
+            {
+                port = -1;
+            }
+
+            StringBuilder key = new StringBuilder(trimmed.length());
+            key.append(protocol).append("://");
+            if (u.getUserInfo() != null)
+            {
+                key.append(u.getUserInfo()).append('@');
+            }
+            key.append(u.getHost().toLowerCase());
+            if (port != -1)
+            {
+                key.append(':').append(port);
+            }
+            String path = u.getPath();
+            key.append(("".equals(path)) ? "/" : path);
+            if (u.getQuery() != null)
+            {
+                key.append('?').append(u.getQuery());
+            }
+            return key.toString();
+        }
+        catch (MalformedURLException e)
+        {
+            return trimmed;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.dspace.content.Bitstream;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+
+import java.io.File;
+import java.sql.SQLException;
+
+/**
+ * LocalAssetStore
+ * ---------------
+ * Finds the file holding a bitstream when its asset store is a directory on the
+ * local filesystem, so it can be read directly instead of streamed through
+ * BitstreamStorageManager. Files are found the same way BitstreamStorageManager
+ * stores them: under assetstore.dir (or assetstore.dir.N for store N), in three
+ * levels of two digit directories taken from the start of the internal ID.
+ * Registered bitstreams ("-R" internal IDs) are found by their registered path.
+ *
+ * @author Kim Shepherd
+ */
+public class LocalAssetStore
+{
+    private static final String REGISTERED_FLAG = "-R";
+
+    private static final int DIRECTORY_LEVELS = 3;
+    private static final int DIGITS_PER_LEVEL = 2;
+
+    /**
+     * @param c The current context
+     * @param bitstream The bitstream
+     * @return The bitstream's file, or null if it isn't in a local asset store
+     * @throws SQLException If the bitstream's internal ID couldn't be read
+     */
+    public static File getFile(Context c, Bitstream bitstream) throws SQLException
+    {
+        int store = bitstream.getStoreNumber();
+        String dir = ConfigurationManager.getProperty((store == 0) ? "assetstore.dir" : "assetstore.dir." + store);
+        if (dir == null)
+        {
+            // An SRB store, or one we don't know about
+            return null;
+        }
+
+        TableRow row = DatabaseManager.querySingle(c,
+                "SELECT internal_id FROM bitstream WHERE bitstream_id = ?", bitstream.getID());
+        String internalId = (row != null) ? row.getStringColumn("internal_id") : null;
+        if (internalId == null)
+        {
+            return null;
+        }
+
+        File file;
+        if (internalId.startsWith(REGISTERED_FLAG))
+        {
+            file = new File(dir, internalId.substring(REGISTERED_FLAG.length()));
+        }
+        else
+        {
+            StringBuilder path = new StringBuilder(dir);
+            for (int i = 0; i < DIRECTORY_LEVELS && (i + 1) * DIGITS_PER_LEVEL <= internalId.length(); i++)
+            {
+                path.append(File.separator).append(internalId, i * DIGITS_PER_LEVEL, (i + 1) * DIGITS_PER_LEVEL);
+            }
+            file = new File(path.toString(), internalId);
+        }
+
+        return file.isFile() ? file : null;
+    }
+}
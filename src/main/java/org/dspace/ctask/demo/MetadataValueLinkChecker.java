@@ -9,32 +9,83 @@ package org.dspace.ctask.demo;
 
 import org.dspace.content.DCValue;
 import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.curate.Distributive;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A link checker that builds upon the BasicLinkChecker to check URLs that
- * appear in all metadata fields where the field starts with http:// or https://
+ * appear anywhere in any metadata value, e.g. in a citation or an abstract.
+ * DOIs (doi:10.xxxx/...) and handles (hdl:xxxx/...) are checked through their
+ * resolvers. See LinkScanner for how links are found.
  *
- * Of course thi assumes that there is no extra metadata following the URL.
+ * Fields that never hold links can be left out with a comma separated list in
+ * [dspace]/config/modules/linkchecker.cfg, where schema.element.* matches every
+ * qualifier of the element:
+ *
+ * linkchecker.scan.skip = dc.description.provenance, dc.date.*
  *
  * @author Stuart Lewis
  */
+@Distributive
 public class MetadataValueLinkChecker extends BasicLinkChecker {
 
+    private static final String PLUGIN_PREFIX = "linkchecker";
+
+    private static final LinkScanner scanner = new LinkScanner();
+
+    // Fields not to scan, as schema.element.qualifier or schema.element.*
+    private static Set<String> skipFields = null;
+
     protected List<String> getURLs(Item item)
     {
-        // Get all metadata elements that start with http:// or https://
-        DCValue[] urls = item.getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY);
-        ArrayList<String> theURLs = new ArrayList<String>();
-        for (DCValue url : urls)
+        // Find links anywhere in any metadata value, keeping the first of any repeats
+        DCValue[] values = item.getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY);
+        Set<String> skip = getSkipFields();
+        Set<String> theURLs = new LinkedHashSet<String>();
+        for (DCValue value : values)
+        {
+            if (value.value != null && !isSkipped(skip, value))
+            {
+                scanner.scan(value.value, theURLs);
+            }
+        }
+        return new ArrayList<String>(theURLs);
+    }
+
+    private static boolean isSkipped(Set<String> skip, DCValue value)
+    {
+        if (skip.isEmpty())
+        {
+            return false;
+        }
+        String element = value.schema + "." + value.element;
+        return skip.contains(element + ".*") ||
+               skip.contains((value.qualifier == null) ? element : element + "." + value.qualifier);
+    }
+
+    private static synchronized Set<String> getSkipFields()
+    {
+        if (skipFields == null)
         {
-            if ((url.value.startsWith("http://")) || (url.value.startsWith("https://")))
+            skipFields = new HashSet<String>();
+            String fields = ConfigurationManager.getProperty(PLUGIN_PREFIX, "linkchecker.scan.skip");
+            if (fields != null)
             {
-                theURLs.add(url.value);
+                for (String field : fields.split(","))
+                {
+                    if (field.trim().length() > 0)
+                    {
+                        skipFields.add(field.trim());
+                    }
+                }
             }
         }
-        return theURLs;
+        return skipFields;
     }
 }
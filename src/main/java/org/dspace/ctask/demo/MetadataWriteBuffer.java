@@ -0,0 +1,296 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.DCValue;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MetadataWriteBuffer
+ * -------------------
+ * Collects the metadata changes a task wants to make to an item and writes them
+ * in one go. Changes that would leave a field as it already is, such as adding a
+ * value the field already has, or clearing and re-adding the same values, are
+ * dropped. An item whose fields all end up unchanged isn't updated at all, and
+ * an item that has changed gets a single Item.update() however many values were
+ * added.
+ *
+ * When the buffer is given a Context, it is committed every so many updated
+ * items instead of after every change, and once more by commit() at the end.
+ * If an update or commit fails, the caller aborts the context and carries on
+ * with a new one through reopen(), which forgets the items that were lost.
+ *
+ * A buffer may be shared by threads working on different items at once (see
+ * ParallelItemRunner), as long as each item is only worked on by one thread.
+ *
+ * @author Kim Shepherd
+ */
+public class MetadataWriteBuffer
+{
+    private static Logger log = Logger.getLogger(MetadataWriteBuffer.class);
+
+    private Context context;
+    private final int commitInterval;
+
+    // Pending changes for each item, by item ID
+    private final Map<Integer, List<Change>> pending = new HashMap<Integer, List<Change>>();
+
+    private int updated = 0;
+    private int unchanged = 0;
+    private int uncommitted = 0;
+    private int commits = 0;
+
+    /**
+     * @param context The context to commit, or null to leave committing to the caller
+     * @param commitInterval How many updated items to commit at a time, or 0 to only commit in commit()
+     */
+    public MetadataWriteBuffer(Context context, int commitInterval)
+    {
+        this.context = context;
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Remove every value of a field, in all languages
+     *
+     * @param item The item
+     * @param field The field to clear
+     */
+    public synchronized void clear(Item item, ItemMetadataIndex.Field field)
+    {
+        getChanges(item).add(new Change(field, null, null));
+    }
+
+    /**
+     * Add a value to a field, unless the field already has the same value in the same language
+     *
+     * @param item The item
+     * @param field The field
+     * @param language The value's language, or null
+     * @param value The value
+     */
+    public synchronized void add(Item item, ItemMetadataIndex.Field field, String language, String value)
+    {
+        getChanges(item).add(new Change(field, language, value));
+    }
+
+    /**
+     * Write the pending changes for an item
+     *
+     * @param item The item
+     * @return Whether the item was changed
+     * @throws SQLException If the item couldn't be updated or the context couldn't be committed
+     * @throws AuthorizeException If the item couldn't be updated
+     */
+    public boolean flush(Item item) throws SQLException, AuthorizeException
+    {
+        List<Change> changes;
+        synchronized (this)
+        {
+            changes = pending.remove(item.getID());
+        }
+        if (changes == null)
+        {
+            return false;
+        }
+
+        // Work out what each field will end up holding, in the order the fields were first changed
+        Map<String, List<Change>> byField = new LinkedHashMap<String, List<Change>>();
+        for (Change change : changes)
+        {
+            List<Change> fieldChanges = byField.get(change.field.toString());
+            if (fieldChanges == null)
+            {
+                fieldChanges = new ArrayList<Change>();
+                byField.put(change.field.toString(), fieldChanges);
+            }
+            fieldChanges.add(change);
+        }
+
+        boolean changed = false;
+        for (List<Change> fieldChanges : byField.values())
+        {
+            changed |= apply(item, fieldChanges);
+        }
+
+        if (!changed)
+        {
+            synchronized (this)
+            {
+                unchanged++;
+            }
+            return false;
+        }
+
+        item.update();
+        synchronized (this)
+        {
+            updated++;
+            uncommitted++;
+            if (context != null && commitInterval > 0 && uncommitted >= commitInterval)
+            {
+                commit();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commit any updated items not yet committed. Does nothing without a context.
+     *
+     * @throws SQLException If the context couldn't be committed
+     */
+    public synchronized void commit() throws SQLException
+    {
+        if (context != null && uncommitted > 0)
+        {
+            context.commit();
+            commits++;
+            log.debug("Committed " + uncommitted + " updated items");
+            uncommitted = 0;
+        }
+    }
+
+    /**
+     * @return The number of updated items not committed yet
+     */
+    public synchronized int getUncommitted()
+    {
+        return uncommitted;
+    }
+
+    /**
+     * Carry on with a new context after the old one has been aborted. Pending
+     * changes are dropped, and items updated since the last commit are no longer
+     * counted as updated.
+     *
+     * @param context The new context to commit
+     * @return The number of updated items that were lost with the old context
+     */
+    public synchronized int reopen(Context context)
+    {
+        int lost = uncommitted;
+        this.context = context;
+        pending.clear();
+        updated -= lost;
+        uncommitted = 0;
+        return lost;
+    }
+
+    /**
+     * @return A short summary of the writes made, for reports
+     */
+    public synchronized String getStatistics()
+    {
+        return "Metadata writes: " + updated + " items updated, " + unchanged + " unchanged, " + commits + " commits";
+    }
+
+    private List<Change> getChanges(Item item)
+    {
+        List<Change> changes = pending.get(item.getID());
+        if (changes == null)
+        {
+            changes = new ArrayList<Change>();
+            pending.put(item.getID(), changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Apply the changes to one field, if they change it
+     *
+     * @return Whether the field was changed
+     */
+    private static boolean apply(Item item, List<Change> changes)
+    {
+        ItemMetadataIndex.Field field = changes.get(0).field;
+        List<Change> current = new ArrayList<Change>();
+        for (DCValue value : item.getMetadata(field.getSchema(), field.getElement(), field.getQualifier(), Item.ANY))
+        {
+            current.add(new Change(field, value.language, value.value));
+        }
+
+        List<Change> result = new ArrayList<Change>(current);
+        for (Change change : changes)
+        {
+            if (change.value == null)
+            {
+                result.clear();
+            }
+            else if (!result.contains(change))
+            {
+                result.add(change);
+            }
+        }
+
+        if (result.equals(current))
+        {
+            return false;
+        }
+
+        // Just add the new values when nothing existing goes, otherwise rewrite the field
+        int from = current.size();
+        if (result.size() < current.size() || !result.subList(0, current.size()).equals(current))
+        {
+            item.clearMetadata(field.getSchema(), field.getElement(), field.getQualifier(), Item.ANY);
+            from = 0;
+        }
+        for (Change value : result.subList(from, result.size()))
+        {
+            item.addMetadata(field.getSchema(), field.getElement(), field.getQualifier(), value.language, value.value);
+        }
+        return true;
+    }
+
+    /**
+     * A value to add to a field, or a clear of the field when value is null
+     */
+    private static class Change
+    {
+        private final ItemMetadataIndex.Field field;
+        private final String language;
+        private final String value;
+
+        private Change(ItemMetadataIndex.Field field, String language, String value)
+        {
+            this.field = field;
+            this.language = language;
+            this.value = value;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Change))
+            {
+                return false;
+            }
+            Change other = (Change) o;
+            return equal(language, other.language) && equal(value, other.value);
+        }
+
+        public int hashCode()
+        {
+            return (value != null) ? value.hashCode() : 0;
+        }
+
+        private static boolean equal(String a, String b)
+        {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+}
@@ -7,14 +7,25 @@
  */
 package org.dspace.ctask.demo;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.Logger;
 import org.dspace.core.ConfigurationManager;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * MicrosoftTranslator
@@ -26,6 +37,9 @@ import java.net.URLEncoder;
  *
  *               This key, and other custom configuration, goes in [dspace]/modules/translator.cfg
  *
+ * Batches of texts are sent as a single POST to the TranslateArray method.
+ * Responses are read as a stream with a SAX parser.
+ *
  * @author Kim Shepherd
  */
 
@@ -35,10 +49,41 @@ public class MicrosoftTranslator extends AbstractTranslator
     private static final String PLUGIN_PREFIX = "translator";
 
     private static final String baseUrl = "http://api.microsofttranslator.com/V2/Http.svc/Translate";
-    private static String apiKey = "";
+    private static final String arrayUrl = "http://api.microsofttranslator.com/V2/Http.svc/TranslateArray";
+    private String apiKey = "";
+
+    // Microsoft's limits on the texts in a single TranslateArray request
+    private static final int MAX_SEGMENTS = 2000;
+    private static final int MAX_CHARS = 10000;
+
+    private static final String SERVICE_NS = "http://schemas.datacontract.org/2004/07/Microsoft.MT.Web.Service.V2";
+    private static final String ARRAYS_NS = "http://schemas.microsoft.com/2003/10/Serialization/Arrays";
+
+    private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
 
     private static Logger log = Logger.getLogger(MicrosoftTranslator.class);
 
+    // Why the parser factory couldn't be made safe for untrusted responses, if it couldn't
+    private static String parserError = null;
+
+    static
+    {
+        parserFactory.setNamespaceAware(true);
+
+        // Responses come over plain http, so never read DTDs or external entities (XXE)
+        try {
+            parserFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            parserFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            parserFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            parserFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            parserFactory.setXIncludeAware(false);
+        }
+        catch(Exception e) {
+            parserError = "XML parser can't be secured: " + e.getLocalizedMessage();
+            log.error(parserError);
+        }
+    }
+
 
     @Override
     protected void initApi() {
@@ -52,26 +97,142 @@ public class MicrosoftTranslator extends AbstractTranslator
 
         text = URLEncoder.encode(text, "UTF-8");
 
-        String translatedText = null;
-
         String url = baseUrl + "?appId=" + apiKey;
         url += "&to=" + to + "&from=" + from + "&text=" + text;
 
-        HttpClient client = new HttpClient();
-        HttpMethod hm = new GetMethod(url);
-        int code = client.executeMethod(hm);
-        log.debug("Response code from API call is " + code);
+        // The response is a single <string> element holding the translation
+        List<String> translations = execute(new GetMethod(url), "string", 1);
+        return translations.get(0);
+    }
 
-        if(code == 200) {
-            String response = hm.getResponseBodyAsString();
-            response = response.replaceAll("<string xmlns=\"http://schemas.microsoft.com/2003/10/Serialization/\">","");
-            response = response.replaceAll("</string>","");
-            translatedText = response;
+    @Override
+    protected List<String> translateBatch(String from, String to, List<String> texts) throws IOException {
+
+        log.debug("Performing API call to translate " + texts.size() + " texts from " + from + " to " + to);
+
+        StringBuilder request = new StringBuilder();
+        request.append("<TranslateArrayRequest>");
+        request.append("<AppId>").append(StringEscapeUtils.escapeXml(apiKey)).append("</AppId>");
+        request.append("<From>").append(StringEscapeUtils.escapeXml(from)).append("</From>");
+        request.append("<Options><ContentType xmlns=\"").append(SERVICE_NS).append("\">text/plain</ContentType></Options>");
+        request.append("<Texts>");
+        for(String text : texts) {
+            request.append("<string xmlns=\"").append(ARRAYS_NS).append("\">");
+            request.append(StringEscapeUtils.escapeXml(text)).append("</string>");
         }
+        request.append("</Texts>");
+        request.append("<To>").append(StringEscapeUtils.escapeXml(to)).append("</To>");
+        request.append("</TranslateArrayRequest>");
 
+        PostMethod pm = new PostMethod(arrayUrl);
+        pm.setRequestEntity(new StringRequestEntity(request.toString(), "text/xml", "UTF-8"));
 
-        return translatedText;
+        // Each text comes back in its own TranslatedText element, in order
+        return execute(pm, "TranslatedText", texts.size());
     }
 
-}
+    @Override
+    protected int getMaxBatchSegments() {
+        return MAX_SEGMENTS;
+    }
+
+    @Override
+    protected int getMaxBatchChars() {
+        return MAX_CHARS;
+    }
+
+    /**
+     * Run an API request and read the translations from the response
+     *
+     * @param hm The request
+     * @param element The name of the response elements holding translations
+     * @param expected The number of texts in the request
+     * @return The translations, in order, with null for any the API didn't answer
+     * @throws RateLimitedException If the API refused the request because of its quota
+     * @throws IOException If the API couldn't be reached
+     */
+    private List<String> execute(HttpMethod hm, String element, int expected) throws IOException {
+
+        List<String> translations = new ArrayList<String>(expected);
+        try {
+            int code = httpClient.executeMethod(hm);
+            log.debug("Response code from API call is " + code);
+
+            if(code == 429) {
+                throw RateLimitedException.forResponse(hm);
+            }
+
+            if(code == 200) {
+                readTranslations(hm.getResponseBodyAsStream(), element, translations);
+            }
+        }
+        finally {
+            // Hand the connection back to the pool
+            hm.releaseConnection();
+        }
+
+        // Anything the API didn't answer counts as a failed translation
+        while(translations.size() < expected) {
+            translations.add(null);
+        }
+
+        return translations;
+    }
+
+    private static synchronized SAXParser newParser() throws ParserConfigurationException, SAXException {
+        if(parserError != null) {
+            throw new ParserConfigurationException(parserError);
+        }
+        // SAXParserFactory isn't guaranteed to be thread safe
+        return parserFactory.newSAXParser();
+    }
 
+    /**
+     * Read the text of every element with the given local name from an XML response
+     *
+     * @param in The response
+     * @param element The local name of the elements to read
+     * @param translations The list to add translations to
+     */
+    static void readTranslations(InputStream in, final String element, final List<String> translations) {
+
+        try {
+            newParser().parse(in, new DefaultHandler()
+            {
+                private StringBuilder text = null;
+
+                public void startElement(String uri, String localName, String qName, Attributes attributes)
+                {
+                    if(element.equals(localName)) {
+                        text = new StringBuilder();
+                    }
+                }
+
+                public void characters(char[] ch, int start, int length)
+                {
+                    if(text != null) {
+                        text.append(ch, start, length);
+                    }
+                }
+
+                public void endElement(String uri, String localName, String qName)
+                {
+                    if(text != null && element.equals(localName)) {
+                        translations.add(text.toString());
+                        text = null;
+                    }
+                }
+            });
+        }
+        catch(SAXException e) {
+            log.info("Error reading Microsoft API response: " + e.getLocalizedMessage());
+        }
+        catch(ParserConfigurationException e) {
+            log.info("Error reading Microsoft API response: " + e.getLocalizedMessage());
+        }
+        catch(IOException e) {
+            log.info("Error reading Microsoft API response: " + e.getLocalizedMessage());
+        }
+    }
+
+}
@@ -0,0 +1,399 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+import org.dspace.curate.Curator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParallelItemRunner
+ * ------------------
+ * Curates the archived items of a collection or community on a bounded pool of
+ * worker threads. Item IDs are streamed from the database and handed to the
+ * workers a few at a time, so memory use doesn't depend on the number of items.
+ * Each worker has a Context of its own, which its items are loaded in and
+ * which is committed every so many items and completed at the end; tasks find
+ * it with getContext(). If a worker's context has to be rolled back, the items
+ * it had curated since its last commit are counted as errors, whatever they
+ * returned, since their changes are lost.
+ *
+ * Only tasks marked with ParallelItems are run on more than one thread, and on
+ * no more threads than they declare. A task uses the runner from its perform()
+ * for a container, e.g.
+ *
+ * int threads = ParallelItemRunner.getThreads(getClass(), configuredThreads);
+ * if(threads > 1) { return new ParallelItemRunner(threads, 100).run(dso, work); }
+ *
+ * An item in more than one of the collections may be curated more than once.
+ *
+ * @author Kim Shepherd
+ */
+public class ParallelItemRunner
+{
+    private static Logger log = Logger.getLogger(ParallelItemRunner.class);
+
+    // Collections per query, keeping IN lists within what every database accepts
+    private static final int COLLECTIONS_PER_QUERY = 500;
+    // Rows fetched from the database at a time
+    private static final int FETCH_SIZE = 1000;
+    // Items waiting for a worker, per worker
+    private static final int QUEUED_PER_THREAD = 4;
+
+    // The context of the worker running on this thread, if any
+    private static final ThreadLocal<Worker> current = new ThreadLocal<Worker>();
+
+    private final int threads;
+    private final int commitInterval;
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private int succeeded = 0;
+    private int failed = 0;
+    private int errors = 0;
+    private int skipped = 0;
+    private int rolledBack = 0;
+
+    /**
+     * Work done on one item
+     */
+    public interface ItemWork
+    {
+        /**
+         * @param item The item, loaded in the worker's context
+         * @return A Curator status code
+         * @throws SQLException If the database couldn't be read or updated
+         * @throws IOException If anything else went wrong
+         */
+        int perform(Item item) throws SQLException, IOException;
+    }
+
+    /**
+     * @param threads How many items to work on at once
+     * @param commitInterval How many items each worker curates between commits, or 0 to only commit at the end
+     */
+    public ParallelItemRunner(int threads, int commitInterval)
+    {
+        this.threads = Math.max(1, threads);
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * @param taskClass The task's class
+     * @param configured How many threads the task is configured to use
+     * @return How many threads the task can be run on: the configured number, but
+     *         no more than its ParallelItems annotation allows, and 1 without one
+     */
+    public static int getThreads(Class<?> taskClass, int configured)
+    {
+        ParallelItems parallel = taskClass.getAnnotation(ParallelItems.class);
+        if (parallel == null)
+        {
+            return 1;
+        }
+        return Math.max(1, Math.min(configured, parallel.value()));
+    }
+
+    /**
+     * @param fallback The context to use when not on a worker thread
+     * @return The context of the worker running on this thread, or fallback
+     */
+    public static Context getContext(Context fallback)
+    {
+        Worker worker = current.get();
+        return (worker != null) ? worker.context : fallback;
+    }
+
+    /**
+     * Curate every archived item of a collection or community
+     *
+     * @param container A Collection or Community
+     * @param work What to do to each item
+     * @return The worst status of any item: CURATE_ERROR, then CURATE_FAIL, then
+     *         CURATE_SUCCESS, or CURATE_SKIP if every item was skipped
+     * @throws IOException If the items couldn't be listed, or the run was interrupted
+     */
+    public int run(DSpaceObject container, final ItemWork work) throws IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("curate-worker"));
+        final Semaphore queued = new Semaphore(threads * QUEUED_PER_THREAD);
+        Context reading = null;
+        PreparedStatement statement = null;
+        try
+        {
+            // A context of its own, since the workers' commits mustn't end this query
+            reading = new Context();
+            List<Integer> collections = BitstreamPolicyCursor.listCollections(container);
+            for (int start = 0; start < collections.size(); start += COLLECTIONS_PER_QUERY)
+            {
+                List<Integer> batch = collections.subList(start, Math.min(collections.size(), start + COLLECTIONS_PER_QUERY));
+                statement = reading.getDBConnection().prepareStatement(
+                        "SELECT i.item_id FROM item i WHERE i.in_archive = '1' AND i.item_id IN (" +
+                        "SELECT c2i.item_id FROM collection2item c2i WHERE c2i.collection_id IN (" +
+                        BitstreamPolicyCursor.placeholders(batch.size()) + ")) ORDER BY i.item_id");
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    statement.setInt(i + 1, batch.get(i));
+                }
+                statement.setFetchSize(FETCH_SIZE);
+                ResultSet ids = statement.executeQuery();
+                while (ids.next())
+                {
+                    final int itemID = ids.getInt(1);
+                    queued.acquire();
+                    pool.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                curate(itemID, work);
+                            }
+                            finally
+                            {
+                                queued.release();
+                            }
+                        }
+                    });
+                }
+                ids.close();
+                statement.close();
+                statement = null;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IOException("Couldn't list the items of " + container.getHandle() + ": " + e.getLocalizedMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while curating " + container.getHandle());
+        }
+        finally
+        {
+            if (statement != null)
+            {
+                try
+                {
+                    statement.close();
+                }
+                catch (SQLException e)
+                {
+                    // Nothing more to read from it either way
+                }
+            }
+            if (reading != null)
+            {
+                reading.abort();
+            }
+            finish(pool);
+        }
+
+        synchronized (this)
+        {
+            if (errors > 0)
+            {
+                return Curator.CURATE_ERROR;
+            }
+            if (failed > 0)
+            {
+                return Curator.CURATE_FAIL;
+            }
+            return (succeeded > 0 || skipped == 0) ? Curator.CURATE_SUCCESS : Curator.CURATE_SKIP;
+        }
+    }
+
+    /**
+     * @return A short summary of the items curated, for reports
+     */
+    public synchronized String getStatistics()
+    {
+        return "Curated " + (succeeded + failed + errors + skipped) + " items on " + threads + " threads: " +
+                succeeded + " succeeded, " + failed + " failed, " + errors + " errors, " + skipped + " skipped" +
+                ((rolledBack > 0) ? " (the errors include " + rolledBack + " items rolled back after a database error)" : "");
+    }
+
+    /**
+     * Curate one item on a worker thread, in that thread's context
+     */
+    private void curate(int itemID, ItemWork work)
+    {
+        Worker worker = current.get();
+        int status;
+        boolean counted = false;
+        try
+        {
+            if (worker == null)
+            {
+                worker = new Worker();
+                current.set(worker);
+                synchronized (this)
+                {
+                    workers.add(worker);
+                }
+            }
+
+            Item item = Item.find(worker.context, itemID);
+            if (item == null)
+            {
+                // Deleted since it was listed
+                status = Curator.CURATE_SKIP;
+            }
+            else
+            {
+                status = work.perform(item);
+                item.decache();
+                // Counted now, and taken back if the worker's context is rolled back before the next commit
+                count(status, 1);
+                counted = true;
+                worker.uncommitted.add(new int[] {itemID, status});
+                if (commitInterval > 0 && worker.uncommitted.size() >= commitInterval)
+                {
+                    worker.context.commit();
+                    worker.uncommitted.clear();
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            log.info("Couldn't curate item " + itemID + ": " + e.getLocalizedMessage());
+            status = Curator.CURATE_ERROR;
+            if (worker != null)
+            {
+                // The transaction may be unusable now, so start again with a new context
+                worker.context.abort();
+                synchronized (this)
+                {
+                    rollBack(worker);
+                    workers.remove(worker);
+                }
+                current.remove();
+            }
+        }
+        catch (Exception e)
+        {
+            log.info("Couldn't curate item " + itemID + ": " + e.getLocalizedMessage());
+            status = Curator.CURATE_ERROR;
+        }
+
+        if (!counted)
+        {
+            count(status, 1);
+        }
+    }
+
+    /**
+     * Add to, or with -1 take away from, the count of items with a status
+     */
+    private synchronized void count(int status, int n)
+    {
+        switch (status)
+        {
+            case Curator.CURATE_SUCCESS:
+                succeeded += n;
+                break;
+            case Curator.CURATE_FAIL:
+                failed += n;
+                break;
+            case Curator.CURATE_SKIP:
+            case Curator.CURATE_UNSET:
+                skipped += n;
+                break;
+            default:
+                errors += n;
+        }
+    }
+
+    /**
+     * A worker's context has been aborted: its items since the last commit lost
+     * their changes, so count them as errors instead of what they returned
+     */
+    private synchronized void rollBack(Worker worker)
+    {
+        for (int[] done : worker.uncommitted)
+        {
+            if (done[1] == Curator.CURATE_SUCCESS || done[1] == Curator.CURATE_FAIL)
+            {
+                log.info("Item " + done[0] + " was rolled back after a database error, although it was reported as done");
+                count(done[1], -1);
+                count(Curator.CURATE_ERROR, 1);
+                rolledBack++;
+            }
+        }
+        worker.uncommitted.clear();
+    }
+
+    /**
+     * Wait for the workers to finish their items, then complete their contexts
+     */
+    private void finish(ExecutorService pool)
+    {
+        pool.shutdown();
+        try
+        {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                log.debug("Waiting for curation workers to finish");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this)
+        {
+            for (Worker worker : workers)
+            {
+                try
+                {
+                    worker.context.complete();
+                }
+                catch (SQLException e)
+                {
+                    log.info("Couldn't commit a curation worker's context: " + e.getLocalizedMessage());
+                    worker.context.abort();
+                    rollBack(worker);
+                }
+            }
+            workers.clear();
+        }
+    }
+
+    /**
+     * A worker thread's context, and the items it has curated since the last commit
+     */
+    private static class Worker
+    {
+        private final Context context;
+        // The ID and status of each item
+        private final List<int[]> uncommitted = new ArrayList<int[]>();
+
+        private Worker() throws SQLException
+        {
+            context = new Context();
+            // As the command line curator does when run without an e-person
+            context.turnOffAuthorisationSystem();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * ParallelItems
+ * -------------
+ * Marks a curation task as safe to work on several items at once, each on its
+ * own thread with its own Context (see ParallelItemRunner). Like
+ * org.dspace.curate.Distributive, it goes on the task class:
+ *
+ * &#64;Distributive
+ * &#64;ParallelItems(8)
+ * public class MyTask extends AbstractCurationTask
+ *
+ * A task without it is only ever run one item at a time, whatever its
+ * configuration says.
+ *
+ * @author Kim Shepherd
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ParallelItems
+{
+    /**
+     * @return The most items the task can safely work on at once
+     */
+    int value();
+}
@@ -0,0 +1,314 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * PolicyAuditState
+ * ----------------
+ * Remembers the result of PolicyChecker's last audit of each collection or
+ * community, so the next audit only needs to look at items that have changed.
+ * For each audited container we keep a watermark (the highest resource policy
+ * ID and the latest item modification time seen, and when the last audit and
+ * the last full audit were done) and the report lines of each item with public
+ * bitstreams.
+ *
+ * Removing a policy, or editing one in place (changing its group, action or
+ * dates), leaves no trace that a watermark can see: resource policies have no
+ * modification time, and an edit keeps the policy's ID. So a full audit is
+ * done anyway once the last one is policychecker.incremental.full.days old,
+ * or when the bundles being audited have changed, and until then such a change
+ * isn't reported. Run a full audit (policychecker.incremental = false) after
+ * any policy edit or removal.
+ *
+ * The state is only kept when policychecker.incremental = true in
+ * [dspace]/config/modules/policychecker.cfg.
+ *
+ * @author Kim Shepherd
+ */
+public class PolicyAuditState
+{
+    private static final String PLUGIN_PREFIX = "policychecker";
+
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+    private static final String WATERMARK = "watermark";
+
+    private static PolicyAuditState instance = null;
+    private static boolean initialised = false;
+    // Runs using the open state
+    private static int users = 0;
+
+    private static Logger log = Logger.getLogger(PolicyAuditState.class);
+
+    private final KeyValueLog entries;
+    private final long fullAuditEvery;
+
+    /**
+     * How far a container's last audit got
+     */
+    public static class Watermark
+    {
+        private final int policyID;
+        private final long modified;
+        private final long audit;
+        private final long fullAudit;
+
+        public Watermark(int policyID, long modified, long audit, long fullAudit)
+        {
+            this.policyID = policyID;
+            this.modified = modified;
+            this.audit = audit;
+            this.fullAudit = fullAudit;
+        }
+
+        /**
+         * @return The highest resource policy ID when the audit started
+         */
+        public int getPolicyID()
+        {
+            return policyID;
+        }
+
+        /**
+         * @return The latest item last_modified time when the audit started
+         */
+        public long getModified()
+        {
+            return modified;
+        }
+
+        /**
+         * @return When the audit started
+         */
+        public long getAudit()
+        {
+            return audit;
+        }
+
+        /**
+         * @return When the last full audit started
+         */
+        public long getFullAudit()
+        {
+            return fullAudit;
+        }
+    }
+
+    private PolicyAuditState(KeyValueLog entries)
+    {
+        this.entries = entries;
+        fullAuditEvery = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "policychecker.incremental.full.days", 7) * DAY;
+    }
+
+    /**
+     * Open the shared state for a run, or join the run that already has it open.
+     * Each run that gets it must call close() when it ends.
+     *
+     * @return The shared state, or null if incremental audits are switched off or the state couldn't be opened
+     */
+    public static synchronized PolicyAuditState open()
+    {
+        if (!initialised)
+        {
+            initialised = true;
+            if (ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "policychecker.incremental", false))
+            {
+                String path = ConfigurationManager.getProperty(PLUGIN_PREFIX, "policychecker.state.file");
+                if (path == null)
+                {
+                    path = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" +
+                            File.separator + "policychecker.state";
+                }
+
+                try
+                {
+                    instance = new PolicyAuditState(new KeyValueLog(new File(path)));
+                    log.debug("Opened policy audit state " + path + " with " + instance.entries.size() + " entries");
+                }
+                catch (IOException e)
+                {
+                    log.info("Couldn't open policy audit state " + path + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        if (instance != null)
+        {
+            users++;
+        }
+        return instance;
+    }
+
+    /**
+     * @param scope The audited container's handle
+     * @param bundles The bundles being audited
+     * @return Where the last audit of the container got to, or null if it needs a full audit
+     */
+    public synchronized Watermark getWatermark(String scope, String[] bundles)
+    {
+        String watermark = entries.get(scope + " " + WATERMARK);
+        if (watermark == null)
+        {
+            return null;
+        }
+        // A watermark written before the audit time was kept has too few parts, and gets a full audit
+        String[] parts = watermark.split(",", 5);
+        if (parts.length < 5 || !parts[4].equals(join(bundles)))
+        {
+            return null;
+        }
+        Watermark found;
+        try
+        {
+            found = new Watermark(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]));
+        }
+        catch (NumberFormatException e)
+        {
+            log.info("Unreadable watermark for " + scope + ", doing a full audit");
+            return null;
+        }
+        return (System.currentTimeMillis() - found.getFullAudit() < fullAuditEvery) ? found : null;
+    }
+
+    /**
+     * Record where an audit of a container got to
+     *
+     * @param scope The audited container's handle
+     * @param bundles The bundles audited
+     * @param watermark The watermark
+     */
+    public synchronized void setWatermark(String scope, String[] bundles, Watermark watermark) throws IOException
+    {
+        entries.put(scope + " " + WATERMARK, watermark.getPolicyID() + "," + watermark.getModified() + "," +
+                watermark.getAudit() + "," + watermark.getFullAudit() + "," + join(bundles));
+    }
+
+    private static String join(String[] bundles)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String bundle : bundles)
+        {
+            sb.append(bundle).append('|');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param scope The audited container's handle
+     * @return The report lines of each item with public bitstreams, by item ID
+     */
+    public synchronized Map<Integer, String> getItems(String scope)
+    {
+        Map<Integer, String> items = new TreeMap<Integer, String>();
+        String prefix = scope + " ";
+        for (Map.Entry<String, String> entry : entries.getEntries().entrySet())
+        {
+            String key = entry.getKey();
+            if (key.startsWith(prefix) && !key.endsWith(" " + WATERMARK))
+            {
+                try
+                {
+                    items.put(Integer.valueOf(key.substring(prefix.length())), entry.getValue());
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not one of ours; it is dropped at the next full audit
+                    log.debug("Ignoring unreadable policy audit entry " + key);
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @param scope The audited container's handle
+     * @param itemID The item
+     * @param lines The item's report lines, or null if none of its bitstreams are public
+     */
+    public synchronized void putItem(String scope, int itemID, String lines) throws IOException
+    {
+        if (lines == null || lines.length() == 0)
+        {
+            entries.remove(scope + " " + itemID);
+        }
+        else
+        {
+            entries.put(scope + " " + itemID, lines);
+        }
+    }
+
+    /**
+     * Forget everything about a container, before a full audit
+     *
+     * @param scope The audited container's handle
+     */
+    public synchronized void clear(String scope) throws IOException
+    {
+        String prefix = scope + " ";
+        for (String key : entries.getEntries().keySet())
+        {
+            if (key.startsWith(prefix))
+            {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Write the state to disk
+     */
+    public void flush()
+    {
+        try
+        {
+            entries.flush();
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't write policy audit state: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * End a run's use of the state. Once no run is using it, it is written out,
+     * compacted if it has grown, and closed; the next run opens it again.
+     */
+    public void close()
+    {
+        synchronized (PolicyAuditState.class)
+        {
+            if (--users > 0)
+            {
+                flush();
+                return;
+            }
+            instance = null;
+            initialised = false;
+            closeLog();
+        }
+    }
+
+    private void closeLog()
+    {
+        try
+        {
+            entries.close();
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't close policy audit state: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -7,22 +7,32 @@
  */
 package org.dspace.ctask.demo;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.authorize.AuthorizeManager;
 import org.dspace.authorize.ResourcePolicy;
 import org.dspace.content.Bitstream;
 import org.dspace.content.Bundle;
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Context;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
 import org.dspace.eperson.Group;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 /**
  *
@@ -31,27 +41,61 @@ import java.util.List;
  * Checks fulltext bitstreams for anonymous: read access, and reports
  * if conditions are met
  *
+ * Access is worked out as DSpace would grant it today (see
+ * EffectiveAccessEvaluator): through any group Anonymous is nested in, only
+ * within the policy's start and end dates, and from the bundle's policies
+ * when a bitstream has no READ policies of its own.
+ *
+ * When run on a collection or community, every bitstream in it is checked with
+ * a few set based queries (see BitstreamPolicyCursor) rather than a policy
+ * lookup per bitstream. The report is the same either way. Set
+ * policychecker.bulk = false in [dspace]/config/modules/policychecker.cfg to
+ * check one item at a time instead.
+ *
+ * The bundles checked are set with policychecker.bundles. With
+ * policychecker.incremental = true, a collection or community audited before
+ * is only checked for items changed since (see PolicyAuditState), and the
+ * report is made up from the stored results. Policies removed or edited in
+ * place since the last full audit aren't seen this way.
+ *
+ * The report goes to the curator by default, one item at a time, or can be
+ * streamed to a CSV or JSON Lines file instead (policychecker.report, see
+ * ReportSink).
+ *
+ * When checking one item at a time, the items of a collection or community
+ * can be checked several at a time, each with its own Context, by setting
+ * policychecker.parallel.items (see ParallelItemRunner).
+ *
  * @author Kim Shepherd
  *
  */
 
-
-public class PolicyChecker extends AbstractCurationTask
+@Distributive
+@ParallelItems(16)
+public class PolicyChecker extends AbstractCurationTask implements ItemCurationTask
 {
 
-    private static int status = Curator.CURATE_UNSET;
-    private static String results = "The task was not run";
-
     private static final String PLUGIN_PREFIX = "policychecker";
 
-    private static String[] bundlesToCurate = {"ORIGINAL", "TEXT"};
+    private static final String[] COLUMNS = {"handle", "bitstream"};
+
+    private String[] bundlesToCurate = {"ORIGINAL", "TEXT"};
 
     private static Logger log = Logger.getLogger(PolicyChecker.class);
 
-    private static Context c;
-    private static final int ANONYMOUS = 0;
     private static final int READ = org.dspace.core.Constants.getActionID("READ");
 
+    // The context of the current perform(), used when not on a worker thread
+    private Context c;
+
+    private boolean bulk = true;
+    private int parallelItems = 1;
+    // Built for each run, from the groups and dates as they are when it starts
+    private EffectiveAccessEvaluator evaluator;
+
+    // The curator's report, and where the current run is reported, opened for each run
+    private ReportSink.CuratorReport curatorReport;
+    private ReportSink sink;
 
     @Override
     public void init(Curator curator, String taskId) throws IOException
@@ -59,46 +103,341 @@ public class PolicyChecker extends AbstractCurationTask
 
         super.init(curator,  taskId);
 
+        bulk = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "policychecker.bulk", true);
+        parallelItems = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "policychecker.parallel.items", 1);
+        String bundles = ConfigurationManager.getProperty(PLUGIN_PREFIX, "policychecker.bundles");
+        if(bundles != null)
+        {
+            bundlesToCurate = StringUtils.stripAll(bundles.split(","));
+        }
+
+        curatorReport = new ReportSink.CuratorReport()
+        {
+            protected void report(String message)
+            {
+                PolicyChecker.this.report(message);
+            }
+
+            protected void setResult(String result)
+            {
+                PolicyChecker.this.setResult(result);
+            }
+
+            protected String format(String[] values)
+            {
+                return values[0] + ",\"" + values[1] + "\"";
+            }
+        };
+
+    }
+
+    /**
+     * Open the report for a run
+     */
+    private void openSink()
+    {
+        sink = ReportSink.open(PLUGIN_PREFIX, "policychecker.report", taskId, COLUMNS, curatorReport);
+        if(sink instanceof ReportSink.CuratorReport)
+        {
+            report("Handle, Bitstream filename");
+        }
+    }
+
+    @Override
+    public int perform(DSpaceObject dso) throws IOException
+    {
+        int status = Curator.CURATE_SUCCESS;
+        boolean container = dso instanceof Collection || dso instanceof Community;
+        int threads = ParallelItemRunner.getThreads(getClass(), parallelItems);
+        openSink();
         try {
             c = new Context();
-        } catch(Exception e) {
+            evaluator = new EffectiveAccessEvaluator(c);
+            if(bulk && container)
+            {
+                checkReadAccess(dso);
+            }
+            else if(threads > 1 && container)
+            {
+                ParallelItemRunner runner = new ParallelItemRunner(threads, 0);
+                status = runner.run(dso, new ParallelItemRunner.ItemWork()
+                {
+                    public int perform(Item item) throws SQLException, IOException
+                    {
+                        performItem(item);
+                        return Curator.CURATE_SUCCESS;
+                    }
+                });
+                report(runner.getStatistics());
+            }
+            else
+            {
+                distribute(dso);
+            }
+        }
+        catch(SQLException e) {
             status = Curator.CURATE_ERROR;
-            String results = "Could not obtain context: " + e.getLocalizedMessage();
+            String results = "Policy check of " + dso.getHandle() + " failed: " + e.getLocalizedMessage();
+            log.info(results);
             setResult(results);
             report(results);
-            return;
         }
+        finally {
+            if(c != null) {
+                // Nothing is changed, so nothing to commit
+                c.abort();
+                c = null;
+            }
+            evaluator = null;
+            sink.close();
+        }
+        return status;
+
+    }
+
+    public void startRun() throws IOException
+    {
+        try {
+            c = new Context();
+            evaluator = new EffectiveAccessEvaluator(c);
+        }
+        catch(SQLException e) {
+            if(c != null) {
+                c.abort();
+                c = null;
+            }
+            throw new IOException("Could not read the groups anonymous users are in: " + e.getLocalizedMessage());
+        }
+        openSink();
+    }
 
-        report("Handle, Bitstream filename");
+    public int curateItem(Item item, ItemMetadataIndex index) throws IOException
+    {
+        try {
+            performItem(item);
+        }
+        catch(SQLException e) {
+            throw new IOException("Policy check of " + item.getHandle() + " failed: " + e.getLocalizedMessage());
+        }
+        return Curator.CURATE_SUCCESS;
+    }
 
+    public boolean changesMetadata()
+    {
+        return false;
+    }
+
+    public void finishRun() throws IOException
+    {
+        if(c != null) {
+            c.abort();
+            c = null;
+        }
+        evaluator = null;
+        sink.close();
     }
 
     @Override
-    public int perform(DSpaceObject dso) throws IOException
+    protected void performItem(Item item) throws SQLException, IOException
     {
-        results = "";
+        List<String> names = new ArrayList<String>();
+        try {
+            checkReadAccess(ParallelItemRunner.getContext(c), item, names);
+        } catch(SQLException e) {
+            log.info("Policy check of " + item.getHandle() + " failed: " + e.getLocalizedMessage());
+            throw e;
+        } catch(AuthorizeException e) {
+            log.info("Policy check of " + item.getHandle() + " failed: " + e.getLocalizedMessage());
+            throw new IOException("Policy check of " + item.getHandle() + " failed: " + e.getLocalizedMessage());
+        }
 
-        if(dso instanceof Item)
+        itemChecked(null, null, item.getID(), item.getHandle(), names);
+    }
+
+    /**
+     * Check every item in a collection or community, reporting each item's
+     * bitstreams as the rows for that item arrive. For an incremental audit only
+     * items changed since the last audit are checked; the stored results of the
+     * others are reported with them.
+     */
+    private void checkReadAccess(DSpaceObject container) throws SQLException, IOException
+    {
+        PolicyAuditState state = PolicyAuditState.open();
+        try {
+            checkReadAccess(container, state);
+        }
+        finally {
+            if(state != null) {
+                state.close();
+            }
+        }
+    }
+
+    /**
+     * @param state The stored results of earlier audits, or null for a full audit that isn't kept
+     */
+    private void checkReadAccess(DSpaceObject container, PolicyAuditState state) throws SQLException, IOException
+    {
+        BitstreamPolicyCursor cursor = new BitstreamPolicyCursor(c, container, bundlesToCurate);
+        String scope = container.getHandle();
+        PolicyAuditState.Watermark next = null;
+        if(state != null)
         {
-            Item item = (Item) dso;
-            status = Curator.CURATE_SUCCESS;
-            try {
-                checkReadAccess(item);
-            } catch(Exception e) {
-                e.printStackTrace();
+            // Taken before the audit, so that anything changed while it runs is seen next time
+            PolicyAuditState.Watermark since = state.getWatermark(scope, bundlesToCurate);
+            next = getWatermark((since != null) ? since.getFullAudit() : System.currentTimeMillis());
+            if(since != null)
+            {
+                cursor.setChangedSince(since.getPolicyID(), new Date(since.getModified()),
+                        new Date(since.getAudit()), new Date(next.getAudit()));
+                for(Integer changed : cursor.getChangedItems())
+                {
+                    state.putItem(scope, changed, null);
+                }
+
+                // Items deleted or moved out of the container since the last audit
+                Set<Integer> current = cursor.getItems();
+                for(Integer stored : state.getItems(scope).keySet())
+                {
+                    if(!current.contains(stored))
+                    {
+                        state.putItem(scope, stored, null);
+                    }
+                }
+            }
+            else
+            {
+                state.clear(scope);
             }
         }
 
-        setResult(results);
-        report(results);
-        return status;
+        int items = 0;
+        int bitstreams = 0;
+        int itemID = -1;
+        String itemHandle = null;
+        int bitstreamID = -1;
+        String name = null;
+        EffectiveAccessEvaluator.Access access = null;
+        List<String> names = new ArrayList<String>();
+        try {
+            // Rows come a policy at a time, grouped by bitstream and item
+            while(cursor.next())
+            {
+                if(cursor.getBitstreamID() != bitstreamID)
+                {
+                    if(access != null && access.isPublic())
+                    {
+                        names.add(name);
+                        bitstreams++;
+                    }
+                    if(cursor.getItemID() != itemID)
+                    {
+                        if(!names.isEmpty())
+                        {
+                            itemChecked(state, scope, itemID, itemHandle, names);
+                            items++;
+                        }
+                        names.clear();
+                        itemID = cursor.getItemID();
+                        itemHandle = cursor.getHandle();
+                    }
+                    bitstreamID = cursor.getBitstreamID();
+                    name = cursor.getBitstreamName();
+                    access = evaluator.newAccess();
+                }
+                access.add(cursor.isBundlePolicy(), cursor.getGroupID(), cursor.getStartDate(), cursor.getEndDate());
+            }
+            if(access != null && access.isPublic())
+            {
+                names.add(name);
+                bitstreams++;
+            }
+            if(!names.isEmpty())
+            {
+                itemChecked(state, scope, itemID, itemHandle, names);
+                items++;
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        if(state != null)
+        {
+            state.setWatermark(scope, bundlesToCurate, next);
+            state.flush();
+
+            // The whole picture, from the stored results
+            String checked = items + " changed items with " + bitstreams + " anonymously readable bitstreams";
+            items = 0;
+            bitstreams = 0;
+            for(String entry : state.getItems(scope).values())
+            {
+                String[] lines = entry.split("\n");
+                names.clear();
+                for(int i = 1; i < lines.length; i++)
+                {
+                    names.add(KeyValueLog.unescape(lines[i]));
+                }
+                report(KeyValueLog.unescape(lines[0]), names);
+                items++;
+                bitstreams += names.size();
+            }
+            setResult(bitstreams + " anonymously readable bitstreams in " + items + " items (" + checked + ")");
+        }
+        else
+        {
+            setResult(bitstreams + " anonymously readable bitstreams in " + items + " items");
+        }
+    }
+
+    /**
+     * An item's public bitstreams are known: report them, or keep them for the
+     * report made from the stored results at the end of an incremental audit
+     */
+    private void itemChecked(PolicyAuditState state, String scope, int itemID, String handle, List<String> names)
+            throws IOException
+    {
+        if(state != null)
+        {
+            StringBuilder entry = new StringBuilder(KeyValueLog.escape(String.valueOf(handle)));
+            for(String name : names)
+            {
+                entry.append('\n').append(KeyValueLog.escape(name));
+            }
+            state.putItem(scope, itemID, entry.toString());
+        }
+        else
+        {
+            report(handle, names);
+        }
+    }
 
+    private void report(String handle, List<String> names) throws IOException
+    {
+        for(String name : names)
+        {
+            sink.row(handle, name);
+        }
+        sink.itemDone(handle, handle + ": " + names.size() + " anonymously readable bitstreams");
+    }
+
+    /**
+     * @param fullAudit When the last full audit started
+     * @return A watermark for the database as it is now
+     */
+    private PolicyAuditState.Watermark getWatermark(long fullAudit) throws SQLException
+    {
+        TableRow policy = DatabaseManager.querySingle(c, "SELECT MAX(policy_id) AS policy_id FROM resourcepolicy");
+        TableRow modified = DatabaseManager.querySingle(c, "SELECT MAX(last_modified) AS last_modified FROM item");
+        Date lastModified = (modified != null) ? modified.getDateColumn("last_modified") : null;
+        return new PolicyAuditState.Watermark((policy != null) ? policy.getIntColumn("policy_id") : -1,
+                (lastModified != null) ? lastModified.getTime() : 0, System.currentTimeMillis(), fullAudit);
     }
 
-    private static void checkReadAccess(Item item) throws SQLException, AuthorizeException
+    private void checkReadAccess(Context c, Item item, List<String> names) throws SQLException, AuthorizeException
     {
 
-        String handle = item.getHandle();
         for (String bundleName : bundlesToCurate)
         {
             Bundle[] bundles = item.getBundles(bundleName);
@@ -106,16 +445,26 @@ public class PolicyChecker extends AbstractCurationTask
             for (Bundle bundle : bundles)
             {
 
+                // Looked up when the first bitstream without policies of its own needs them
+                List<ResourcePolicy> bundlePolicies = null;
+
                 for (Bitstream bs : bundle.getBitstreams())
                 {
-                    List<ResourcePolicy> rps =  AuthorizeManager.getPoliciesActionFilter(c, bs, READ);
-                    for(ResourcePolicy rp : rps)
+                    EffectiveAccessEvaluator.Access access = evaluator.newAccess();
+                    access.addAll(false, AuthorizeManager.getPoliciesActionFilter(c, bs, READ));
+                    if(!access.hasOwnPolicies())
                     {
-                        // Anonymous has read access?
-                        if(rp.getGroupID() == ANONYMOUS)
+                        if(bundlePolicies == null)
                         {
-                            results += handle + ",\"" + bs.getName() + "\"" + "\n";
+                            bundlePolicies = AuthorizeManager.getPoliciesActionFilter(c, bundle, READ);
                         }
+                        access.addAll(true, bundlePolicies);
+                    }
+
+                    // Anonymous has read access?
+                    if(access.isPublic())
+                    {
+                        names.add(bs.getName());
                     }
 
                 }
@@ -0,0 +1,165 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * QuotaGovernor
+ * -------------
+ * Keeps every thread in the JVM within a translation service's quota. Each
+ * request waits for a token from a requests-per-second bucket and for one token
+ * per character from a characters-per-second bucket.
+ *
+ * When the service answers HTTP 429 anyway, all requests to it are paused for a
+ * backoff that doubles with each refusal in a row (or for as long as the service
+ * asks), and both rates are halved. Each successful request after that lifts the
+ * rates back a little towards the configured quota.
+ *
+ * There is one governor per service, configured in [dspace]/config/modules/translator.cfg.
+ * A rate of 0 means no limit:
+ *
+ * translate.quota.requests = 0
+ * translate.quota.chars = 0
+ * translate.quota.backoff.min = 1000
+ * translate.quota.backoff.max = 60000
+ *
+ * @author Kim Shepherd
+ */
+public class QuotaGovernor
+{
+    private static final String PLUGIN_PREFIX = "translator";
+
+    // Never slow down to less than this fraction of the configured quota
+    private static final double MIN_RATE_FRACTION = 0.05;
+    // How much of the lost rate each successful request wins back
+    private static final double RECOVERY = 1.1;
+
+    private static final Map<String, QuotaGovernor> governors = new HashMap<String, QuotaGovernor>();
+
+    private static Logger log = Logger.getLogger(QuotaGovernor.class);
+
+    private final String service;
+    private final TokenBucket requests;
+    private final TokenBucket chars;
+    private final double requestRate;
+    private final double charRate;
+    private final long minBackoff;
+    private final long maxBackoff;
+
+    private long backoff = 0;
+    private long pausedUntil = 0;
+
+    private QuotaGovernor(String service, double requestRate, double charRate, long minBackoff, long maxBackoff)
+    {
+        this.service = service;
+        this.requestRate = requestRate;
+        this.charRate = charRate;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        // Allow a second's worth of burst
+        this.requests = (requestRate > 0) ? new TokenBucket(requestRate, Math.max(1, requestRate)) : null;
+        this.chars = (charRate > 0) ? new TokenBucket(charRate, Math.max(1, charRate)) : null;
+    }
+
+    /**
+     * Get the governor for a translation service, creating it from configuration on first use
+     *
+     * @param service A name for the service, e.g. the translator's class name
+     * @return The governor shared by every caller of the service
+     */
+    public static synchronized QuotaGovernor getInstance(String service)
+    {
+        QuotaGovernor governor = governors.get(service);
+        if (governor == null)
+        {
+            double requestRate = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.quota.requests", 0);
+            double charRate = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.quota.chars", 0);
+            long minBackoff = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.quota.backoff.min", 1000);
+            long maxBackoff = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.quota.backoff.max", 60000);
+            governor = new QuotaGovernor(service, requestRate, charRate, Math.max(1, minBackoff),
+                    Math.max(minBackoff, maxBackoff));
+            governors.put(service, governor);
+            log.debug("Quota for " + service + " is " + requestRate + " requests/s, " + charRate + " chars/s");
+        }
+        return governor;
+    }
+
+    /**
+     * Wait until a request may be sent
+     *
+     * @param length The number of characters in the request
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void acquire(int length) throws InterruptedException
+    {
+        long pause;
+        while ((pause = getPause()) > 0)
+        {
+            Thread.sleep(pause);
+        }
+        if (requests != null)
+        {
+            requests.acquire(1);
+        }
+        if (chars != null)
+        {
+            chars.acquire(length);
+        }
+    }
+
+    /**
+     * Record that the service refused a request, pausing all requests to it
+     *
+     * @param retryAfter How long the service asked us to wait, in milliseconds, or -1 if it didn't say
+     */
+    public synchronized void throttled(long retryAfter)
+    {
+        backoff = (backoff == 0) ? minBackoff : Math.min(maxBackoff, backoff * 2);
+        long pause = Math.max(backoff, retryAfter);
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + pause);
+        slowDown(requests, requestRate);
+        slowDown(chars, charRate);
+        log.info(service + " is throttling requests, pausing for " + pause + "ms");
+    }
+
+    /**
+     * Record that the service answered a request
+     */
+    public synchronized void succeeded()
+    {
+        backoff = 0;
+        speedUp(requests, requestRate);
+        speedUp(chars, charRate);
+    }
+
+    private synchronized long getPause()
+    {
+        return pausedUntil - System.currentTimeMillis();
+    }
+
+    private static void slowDown(TokenBucket bucket, double quota)
+    {
+        if (bucket != null)
+        {
+            bucket.setRate(Math.max(quota * MIN_RATE_FRACTION, bucket.getRate() / 2));
+        }
+    }
+
+    private static void speedUp(TokenBucket bucket, double quota)
+    {
+        if (bucket != null && bucket.getRate() < quota)
+        {
+            bucket.setRate(Math.min(quota, bucket.getRate() * RECOVERY));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+import java.io.IOException;
+
+/**
+ * RateLimitedException
+ * --------------------
+ * Thrown when a web service refuses a request because too many have been made
+ * (HTTP 429), so the caller can back off and try again.
+ *
+ * @author Kim Shepherd
+ */
+public class RateLimitedException extends IOException
+{
+    private final long retryAfter;
+
+    /**
+     * @param message A description of the refused request
+     * @param retryAfter How long the service asked us to wait, in milliseconds, or -1 if it didn't say
+     */
+    public RateLimitedException(String message, long retryAfter)
+    {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Create an exception for a refused request, reading the Retry-After header if there is one
+     *
+     * @param hm The refused request
+     * @return The exception to throw
+     */
+    public static RateLimitedException forResponse(HttpMethod hm)
+    {
+        long retryAfter = -1;
+        Header header = hm.getResponseHeader("Retry-After");
+        if (header != null && header.getValue() != null)
+        {
+            try
+            {
+                retryAfter = Long.parseLong(header.getValue().trim()) * 1000L;
+            }
+            catch (NumberFormatException e)
+            {
+                // An HTTP date rather than a number of seconds, so fall back to our own backoff
+            }
+        }
+        return new RateLimitedException("Rate limited by service (HTTP 429)", retryAfter);
+    }
+
+    /**
+     * @return How long the service asked us to wait, in milliseconds, or -1 if it didn't say
+     */
+    public long getRetryAfter()
+    {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,403 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * ReportSink
+ * ----------
+ * Where a task's report goes: a row at a time, with a summary at the end of each
+ * item. Nothing is kept beyond the current item, so memory and time per item
+ * stay the same however many items a run covers.
+ *
+ * CuratorReport sends each item's rows to the curator's report, and the summary to
+ * its result, one item at a time. The file sinks stream rows to a CSV or JSON
+ * Lines file through a buffered file channel; only item summaries go to the
+ * curator. The sink is chosen with [prefix].report = curator, csv or jsonl in
+ * the task's module configuration, and files are written to
+ * [prefix].report.dir (default [dspace]/reports). A task opens a sink when a run
+ * starts and closes it when the run ends, so each run has a file of its own.
+ *
+ * Sinks may be used by several threads working on different items at once
+ * (see ParallelItemRunner); each item's rows must all come from one thread, and
+ * are kept together in the report.
+ *
+ * @author Kim Shepherd
+ */
+public abstract class ReportSink
+{
+    private static Logger log = Logger.getLogger(ReportSink.class);
+
+    /**
+     * Report one row
+     *
+     * @param values The row's values, one per column
+     * @throws IOException If the row couldn't be written
+     */
+    public abstract void row(String... values) throws IOException;
+
+    /**
+     * Report the end of an item
+     *
+     * @param handle The item's handle
+     * @param summary A one line summary of what was done to the item
+     * @throws IOException If the report couldn't be written
+     */
+    public abstract void itemDone(String handle, String summary) throws IOException;
+
+    /**
+     * Write anything buffered. close() does this, and a file report also writes
+     * its buffer out whenever it fills, so tasks needn't call it after each item.
+     *
+     * @throws IOException If the report couldn't be written
+     */
+    public void flush() throws IOException
+    {
+    }
+
+    /**
+     * Write anything buffered and let go of the report. Called at the end of each
+     * run; the sink isn't used after this.
+     *
+     * @throws IOException If the report couldn't be written
+     */
+    public void close() throws IOException
+    {
+    }
+
+    /**
+     * Choose a sink from configuration
+     *
+     * @param module The task's module, e.g. "policychecker"
+     * @param prefix The prefix of the report settings, e.g. "policychecker.report"
+     * @param name The start of the report file's name, e.g. the task ID
+     * @param columns The column names
+     * @param curator The sink for the curator's report, used for item summaries in any case
+     * @return The sink
+     */
+    public static ReportSink open(String module, String prefix, String name, String[] columns, CuratorReport curator)
+    {
+        String format = ConfigurationManager.getProperty(module, prefix);
+        if (format == null || format.trim().equalsIgnoreCase("curator"))
+        {
+            return curator;
+        }
+        format = format.trim().toLowerCase();
+        if (!format.equals("csv") && !format.equals("jsonl"))
+        {
+            log.info("Unknown report format " + format + ", reporting to the curator");
+            return curator;
+        }
+
+        String dir = ConfigurationManager.getProperty(module, prefix + ".dir");
+        if (dir == null)
+        {
+            dir = ConfigurationManager.getProperty("dspace.dir") + File.separator + "reports";
+        }
+        File file = new File(dir, name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "." + format);
+        try
+        {
+            file.getParentFile().mkdirs();
+            FileReport sink = format.equals("csv") ? new CsvReport(file, columns, curator) :
+                    new JsonLinesReport(file, columns, curator);
+            curator.setResult("Report is being written to " + file);
+            return sink;
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't create report " + file + ", reporting to the curator: " + e.getLocalizedMessage());
+            return curator;
+        }
+    }
+
+    /**
+     * Quote a value for CSV, if it needs quoting
+     */
+    static String csv(String value)
+    {
+        if (value == null)
+        {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+        {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Reports to the curator. Tasks subclass this to reach their report() and
+     * setResult() methods, and may change how a row is written.
+     */
+    public abstract static class CuratorReport extends ReportSink
+    {
+        // The rows of the item each thread is working on
+        private final ThreadLocal<StringBuilder> item = new ThreadLocal<StringBuilder>()
+        {
+            protected StringBuilder initialValue()
+            {
+                return new StringBuilder();
+            }
+        };
+
+        /**
+         * @param message Passed to the task's report()
+         */
+        protected abstract void report(String message);
+
+        /**
+         * @param result Passed to the task's setResult()
+         */
+        protected abstract void setResult(String result);
+
+        /**
+         * @param values A row's values
+         * @return The row as a line of the report, CSV by default
+         */
+        protected String format(String[] values)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < values.length; i++)
+            {
+                sb.append((i == 0) ? "" : ",").append(csv(values[i]));
+            }
+            return sb.toString();
+        }
+
+        public void row(String... values)
+        {
+            item.get().append(format(values)).append('\n');
+        }
+
+        public void itemDone(String handle, String summary)
+        {
+            StringBuilder rows = item.get();
+            synchronized (this)
+            {
+                if (rows.length() > 0)
+                {
+                    report(rows.toString());
+                }
+                setResult(summary);
+            }
+            rows.setLength(0);
+        }
+    }
+
+    /**
+     * Writes rows to a file through a buffered channel. Each thread's rows are
+     * held until its item is done, then written together.
+     */
+    private abstract static class FileReport extends ReportSink
+    {
+        private static final int BUFFER = 64 * 1024;
+
+        private final File file;
+        private final FileChannel channel;
+        private final CuratorReport curator;
+        private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+        // The rows of the item each thread is working on
+        private final ThreadLocal<StringBuilder> item = new ThreadLocal<StringBuilder>()
+        {
+            protected StringBuilder initialValue()
+            {
+                return new StringBuilder();
+            }
+        };
+
+        protected final String[] columns;
+
+        FileReport(File file, String[] columns, CuratorReport curator) throws IOException
+        {
+            this.file = file;
+            this.channel = new FileOutputStream(file).getChannel();
+            this.columns = columns;
+            this.curator = curator;
+        }
+
+        /**
+         * @param values A row's values
+         * @return The row as a line of the file, with its line end
+         */
+        protected abstract String line(String[] values);
+
+        public void row(String... values)
+        {
+            item.get().append(line(values));
+        }
+
+        public void itemDone(String handle, String summary) throws IOException
+        {
+            StringBuilder rows = item.get();
+            try
+            {
+                write(rows);
+            }
+            finally
+            {
+                rows.setLength(0);
+            }
+            synchronized (curator)
+            {
+                curator.setResult(summary);
+            }
+        }
+
+        public synchronized void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Encode text into the buffer, writing the buffer out whenever it fills
+         */
+        protected synchronized void write(CharSequence text) throws IOException
+        {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true)
+            {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (result.isOverflow())
+                {
+                    flush();
+                }
+                else
+                {
+                    break;
+                }
+            }
+            encoder.reset();
+        }
+
+        public synchronized void close() throws IOException
+        {
+            if (!channel.isOpen())
+            {
+                return;
+            }
+            try
+            {
+                flush();
+            }
+            finally
+            {
+                channel.close();
+                log.debug("Closed report " + file);
+            }
+        }
+    }
+
+    private static class CsvReport extends FileReport
+    {
+        CsvReport(File file, String[] columns, CuratorReport curator) throws IOException
+        {
+            super(file, columns, curator);
+            write(line(columns));
+        }
+
+        protected String line(String[] values)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < values.length; i++)
+            {
+                sb.append((i == 0) ? "" : ",").append(csv(values[i]));
+            }
+            return sb.append('\n').toString();
+        }
+    }
+
+    /**
+     * One JSON object per line, keyed by column name
+     */
+    private static class JsonLinesReport extends FileReport
+    {
+        JsonLinesReport(File file, String[] columns, CuratorReport curator) throws IOException
+        {
+            super(file, columns, curator);
+        }
+
+        protected String line(String[] values)
+        {
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < values.length && i < columns.length; i++)
+            {
+                sb.append((i == 0) ? "" : ",");
+                json(sb, columns[i]);
+                sb.append(':');
+                json(sb, values[i]);
+            }
+            return sb.append("}\n").toString();
+        }
+
+        private static void json(StringBuilder sb, String value)
+        {
+            if (value == null)
+            {
+                sb.append("null");
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++)
+            {
+                char ch = value.charAt(i);
+                switch (ch)
+                {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (ch < 0x20)
+                        {
+                            sb.append(String.format("\\u%04x", (int) ch));
+                        }
+                        else
+                        {
+                            sb.append(ch);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
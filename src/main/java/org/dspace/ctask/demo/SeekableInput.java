@@ -0,0 +1,372 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SeekableInput
+ * -------------
+ * A stream that can also move to any position, for reading image formats whose
+ * metadata is found by following offsets. Three kinds are provided:
+ *
+ * forFile() reads a local file through a memory mapped window, mapping only the
+ * part of the file being read. forBytes() reads an array. Subclasses of
+ * Reopening read a stream that can only go forwards, skipping ahead to seek
+ * forwards and opening the stream again to seek backwards.
+ *
+ * @author Kim Shepherd
+ */
+public abstract class SeekableInput extends InputStream
+{
+    /**
+     * @return The current position
+     */
+    public abstract long getPosition();
+
+    /**
+     * Move to a position. Reads after the end of the input return -1.
+     *
+     * @param position The position to move to
+     * @throws IOException If the input couldn't be moved
+     */
+    public abstract void seek(long position) throws IOException;
+
+    /**
+     * @return The total number of bytes read from the underlying storage, for statistics
+     */
+    public abstract long getBytesRead();
+
+    public long skip(long n) throws IOException
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+        seek(getPosition() + n);
+        return n;
+    }
+
+    /**
+     * Read exactly enough bytes to fill an array
+     *
+     * @param buffer The array to fill
+     * @throws IOException If the input ends first
+     */
+    public void readFully(byte[] buffer) throws IOException
+    {
+        int offset = 0;
+        while (offset < buffer.length)
+        {
+            int read = read(buffer, offset, buffer.length - offset);
+            if (read == -1)
+            {
+                throw new EOFException("Image ends in the middle of a segment");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Read as many bytes as there are up to the size of an array
+     *
+     * @param buffer The array to fill
+     * @return The number of bytes read
+     * @throws IOException If the input couldn't be read
+     */
+    public int readUpTo(byte[] buffer) throws IOException
+    {
+        int offset = 0;
+        int read;
+        while (offset < buffer.length && (read = read(buffer, offset, buffer.length - offset)) != -1)
+        {
+            offset += read;
+        }
+        return offset;
+    }
+
+    /**
+     * @param file A local file
+     * @return An input reading the file through a memory mapped window
+     * @throws IOException If the file couldn't be opened
+     */
+    public static SeekableInput forFile(File file) throws IOException
+    {
+        return new Mapped(new RandomAccessFile(file, "r"));
+    }
+
+    /**
+     * @param bytes An array
+     * @return An input reading the array
+     */
+    public static SeekableInput forBytes(byte[] bytes)
+    {
+        return new Bytes(bytes);
+    }
+
+    /**
+     * A file read through a window that is moved when reading leaves it
+     */
+    private static class Mapped extends SeekableInput
+    {
+        // How much of the file to map at a time
+        private static final int WINDOW = 64 * 1024;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer window = null;
+        private long position = 0;
+        private long bytesRead = 0;
+
+        private Mapped(RandomAccessFile file) throws IOException
+        {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.size = channel.size();
+        }
+
+        public int read() throws IOException
+        {
+            if (!map())
+            {
+                return -1;
+            }
+            int b = window.get((int)(position - windowStart)) & 0xFF;
+            position++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!map())
+            {
+                return -1;
+            }
+            int offset = (int)(position - windowStart);
+            int n = Math.min(len, window.limit() - offset);
+            window.position(offset);
+            window.get(b, off, n);
+            position += n;
+            return n;
+        }
+
+        public long getPosition()
+        {
+            return position;
+        }
+
+        public void seek(long position)
+        {
+            this.position = position;
+        }
+
+        public long getBytesRead()
+        {
+            return bytesRead;
+        }
+
+        public int available()
+        {
+            return (int)Math.max(0, Math.min(Integer.MAX_VALUE, size - position));
+        }
+
+        public void close() throws IOException
+        {
+            file.close();
+        }
+
+        /**
+         * Make sure the current position is inside the mapped window
+         *
+         * @return false at the end of the file
+         */
+        private boolean map() throws IOException
+        {
+            if (position >= size)
+            {
+                return false;
+            }
+            if (window == null || position < windowStart || position >= windowStart + window.limit())
+            {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW, size - windowStart));
+                bytesRead += window.limit();
+            }
+            return true;
+        }
+    }
+
+    private static class Bytes extends SeekableInput
+    {
+        private final byte[] bytes;
+        private int position = 0;
+
+        private Bytes(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        public int read()
+        {
+            return (position < bytes.length) ? bytes[position++] & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (position >= bytes.length)
+            {
+                return -1;
+            }
+            int n = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        public long getPosition()
+        {
+            return position;
+        }
+
+        public void seek(long position)
+        {
+            this.position = (int)Math.min(position, bytes.length);
+        }
+
+        public long getBytesRead()
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * A forward only stream, opened again when we need to go back. Subclasses say
+     * how to open the stream.
+     */
+    public abstract static class Reopening extends SeekableInput
+    {
+        private InputStream in = null;
+        private long position = 0;
+        // Where the open stream is, which lags behind position after a forward seek
+        private long streamPosition = 0;
+        private long bytesRead = 0;
+
+        /**
+         * @return The stream, from the start
+         * @throws IOException If the stream couldn't be opened
+         */
+        protected abstract InputStream open() throws IOException;
+
+        public int read() throws IOException
+        {
+            if (!catchUp())
+            {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1)
+            {
+                position++;
+                streamPosition++;
+                bytesRead++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!catchUp())
+            {
+                return -1;
+            }
+            int n = in.read(b, off, len);
+            if (n > 0)
+            {
+                position += n;
+                streamPosition += n;
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        public long getPosition()
+        {
+            return position;
+        }
+
+        public void seek(long position)
+        {
+            this.position = position;
+        }
+
+        public long getBytesRead()
+        {
+            return bytesRead;
+        }
+
+        public void close() throws IOException
+        {
+            if (in != null)
+            {
+                in.close();
+                in = null;
+            }
+        }
+
+        /**
+         * Bring the stream to the current position, reopening it if it is past it
+         *
+         * @return false if the stream ends first
+         */
+        private boolean catchUp() throws IOException
+        {
+            if (in == null || streamPosition > position)
+            {
+                close();
+                in = open();
+                streamPosition = 0;
+            }
+            while (streamPosition < position)
+            {
+                long skipped = in.skip(position - streamPosition);
+                if (skipped <= 0)
+                {
+                    // skip() may give up early, so make sure we aren't at the end
+                    if (in.read() == -1)
+                    {
+                        return false;
+                    }
+                    skipped = 1;
+                }
+                streamPosition += skipped;
+                bytesRead += skipped;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * TiffHeaderReader
+ * ----------------
+ * Reads the metadata of a TIFF structure: a TIFF file, or the EXIF block inside
+ * a JPEG, PNG, WebP or HEIC image. Only the first image file directory (IFD0)
+ * is read, with the EXIF, GPS and interoperability directories it points to,
+ * by seeking to each directory and each value stored outside a directory. The
+ * image data, thumbnails and other pages are never read, so a multi-gigabyte
+ * archival master costs a few kilobytes of I/O.
+ *
+ * What is read is written out again as a new, compact TIFF structure with the
+ * same byte order and tags, and offsets pointing into itself, small enough to
+ * wrap in a JPEG APP1 segment for the metadata reader. Tags locating image data
+ * are left out, as are values over 32 KB (such as embedded Photoshop data).
+ *
+ * @author Kim Shepherd
+ */
+public class TiffHeaderReader
+{
+    private static Logger log = Logger.getLogger(TiffHeaderReader.class);
+
+    // Tags whose value is the offset of another directory
+    private static final int EXIF_IFD = 0x8769;
+    private static final int GPS_IFD = 0x8825;
+    private static final int INTEROP_IFD = 0xA005;
+
+    // Tags locating image data or other images, which would point nowhere in the copy
+    private static final Set<Integer> IMAGE_DATA = new HashSet<Integer>(Arrays.asList(
+            273, 279, 288, 289, 324, 325, 330, 513, 514));
+
+    // Bytes per value of each TIFF field type, by type number
+    private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4 };
+
+    private static final int MAX_VALUE = 32 * 1024;
+    private static final int MAX_ENTRIES = 1024;
+    // IFD0 -> EXIF -> interoperability
+    private static final int MAX_DEPTH = 2;
+    // The most that fits in a JPEG APP1 segment after the "Exif" identifier
+    private static final int MAX_SIZE = 0xFFFF - 8;
+
+    /**
+     * Read the metadata directories of a TIFF structure
+     *
+     * @param in The input holding the structure
+     * @param base The position of the structure's header, which its offsets are relative to
+     * @return A compact copy of the structure's metadata
+     * @throws IOException If the structure couldn't be read or isn't a TIFF
+     */
+    public static byte[] readExif(SeekableInput in, long base) throws IOException
+    {
+        byte[] header = new byte[8];
+        in.seek(base);
+        in.readFully(header);
+
+        boolean bigEndian;
+        if (header[0] == 'M' && header[1] == 'M')
+        {
+            bigEndian = true;
+        }
+        else if (header[0] == 'I' && header[1] == 'I')
+        {
+            bigEndian = false;
+        }
+        else
+        {
+            throw new IOException("Bad TIFF byte order mark");
+        }
+        if (getShort(header, 2, bigEndian) != 42)
+        {
+            throw new IOException("Not a TIFF structure, or BigTIFF, which isn't supported");
+        }
+
+        Reader reader = new Reader(in, base, bigEndian);
+        Directory ifd0 = reader.readDirectory(getInt(header, 4, bigEndian), 0);
+
+        int size = 8 + ifd0.size();
+        if (size > MAX_SIZE)
+        {
+            throw new IOException("TIFF metadata too large (" + size + " bytes)");
+        }
+        Writer writer = new Writer(size, bigEndian);
+        writer.out.write(header, 0, 4);
+        writer.putInt(8);
+        writer.write(ifd0, 8);
+        return writer.out.toByteArray();
+    }
+
+    private static int getShort(byte[] b, int offset, boolean bigEndian)
+    {
+        int b0 = b[offset] & 0xFF;
+        int b1 = b[offset + 1] & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long getInt(byte[] b, int offset, boolean bigEndian)
+    {
+        long value = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            value = (value << 8) | (b[offset + (bigEndian ? i : 3 - i)] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * A directory entry. The value is held in the file's byte order; a tag
+     * pointing at another directory holds that directory instead.
+     */
+    private static class Entry
+    {
+        private int tag;
+        private int type;
+        private long count;
+        private long offset;
+        private byte[] value;
+        private Directory directory;
+
+        /**
+         * @return How much space the value takes after the directory, if it is too big to go inline
+         */
+        private int outOfLine()
+        {
+            return (directory == null && value.length > 4) ? value.length + (value.length & 1) : 0;
+        }
+    }
+
+    private static class Directory
+    {
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        /**
+         * @return The size of this directory, its values and the directories it points to
+         */
+        private int size()
+        {
+            int size = 2 + 12 * entries.size() + 4;
+            for (Entry entry : entries)
+            {
+                size += (entry.directory != null) ? entry.directory.size() : entry.outOfLine();
+            }
+            return size;
+        }
+    }
+
+    private static class Reader
+    {
+        private final SeekableInput in;
+        private final long base;
+        private final boolean bigEndian;
+        private final Set<Long> visited = new HashSet<Long>();
+
+        private Reader(SeekableInput in, long base, boolean bigEndian)
+        {
+            this.in = in;
+            this.base = base;
+            this.bigEndian = bigEndian;
+        }
+
+        private Directory readDirectory(long offset, int depth) throws IOException
+        {
+            if (!visited.add(offset))
+            {
+                throw new IOException("TIFF directories form a loop");
+            }
+
+            byte[] countBytes = new byte[2];
+            in.seek(base + offset);
+            in.readFully(countBytes);
+            int count = getShort(countBytes, 0, bigEndian);
+            if (count > MAX_ENTRIES)
+            {
+                throw new IOException("Bad TIFF directory (" + count + " entries)");
+            }
+            byte[] raw = new byte[count * 12];
+            in.readFully(raw);
+
+            Directory directory = new Directory();
+            List<Entry> outOfLine = new ArrayList<Entry>();
+            List<Entry> pointers = new ArrayList<Entry>();
+            for (int i = 0; i < count; i++)
+            {
+                int at = i * 12;
+                Entry entry = new Entry();
+                entry.tag = getShort(raw, at, bigEndian);
+                entry.type = getShort(raw, at + 2, bigEndian);
+                entry.count = getInt(raw, at + 4, bigEndian);
+                entry.offset = getInt(raw, at + 8, bigEndian);
+
+                if (IMAGE_DATA.contains(entry.tag) || entry.type <= 0 || entry.type >= TYPE_SIZES.length)
+                {
+                    continue;
+                }
+                long length = entry.count * TYPE_SIZES[entry.type];
+                if (length > MAX_VALUE)
+                {
+                    log.debug("Leaving out TIFF tag " + entry.tag + " (" + length + " bytes)");
+                    continue;
+                }
+
+                if (entry.tag == EXIF_IFD || entry.tag == GPS_IFD || entry.tag == INTEROP_IFD)
+                {
+                    if (depth < MAX_DEPTH && entry.count == 1)
+                    {
+                        pointers.add(entry);
+                        directory.entries.add(entry);
+                    }
+                }
+                else if (length <= 4)
+                {
+                    entry.value = new byte[(int)length];
+                    System.arraycopy(raw, at + 8, entry.value, 0, (int)length);
+                    directory.entries.add(entry);
+                }
+                else
+                {
+                    entry.value = new byte[(int)length];
+                    outOfLine.add(entry);
+                    directory.entries.add(entry);
+                }
+            }
+
+            // Read values in file order, so a forward only stream seldom has to start again
+            Collections.sort(outOfLine, new Comparator<Entry>()
+            {
+                public int compare(Entry a, Entry b)
+                {
+                    return (a.offset < b.offset) ? -1 : (a.offset > b.offset) ? 1 : 0;
+                }
+            });
+            for (Entry entry : outOfLine)
+            {
+                in.seek(base + entry.offset);
+                in.readFully(entry.value);
+            }
+            for (Entry entry : pointers)
+            {
+                try
+                {
+                    entry.directory = readDirectory(entry.offset, depth + 1);
+                }
+                catch (IOException e)
+                {
+                    // Keep what we have from the parent directory
+                    log.debug("Couldn't read TIFF directory for tag " + entry.tag + ": " + e.getLocalizedMessage());
+                    directory.entries.remove(entry);
+                }
+            }
+            return directory;
+        }
+    }
+
+    private static class Writer
+    {
+        private final ByteArrayOutputStream out;
+        private final boolean bigEndian;
+
+        private Writer(int size, boolean bigEndian)
+        {
+            this.out = new ByteArrayOutputStream(size);
+            this.bigEndian = bigEndian;
+        }
+
+        /**
+         * Write a directory, then its out of line values, then the directories it points to
+         *
+         * @param directory The directory
+         * @param offset Where the directory goes, from the start of the TIFF header
+         */
+        private void write(Directory directory, int offset)
+        {
+            int valueOffset = offset + 2 + 12 * directory.entries.size() + 4;
+            int directoryOffset = valueOffset;
+            for (Entry entry : directory.entries)
+            {
+                directoryOffset += entry.outOfLine();
+            }
+
+            putShort(directory.entries.size());
+            for (Entry entry : directory.entries)
+            {
+                putShort(entry.tag);
+                putShort(entry.type);
+                putInt(entry.count);
+                if (entry.directory != null)
+                {
+                    putInt(directoryOffset);
+                    directoryOffset += entry.directory.size();
+                }
+                else if (entry.value.length > 4)
+                {
+                    putInt(valueOffset);
+                    valueOffset += entry.outOfLine();
+                }
+                else
+                {
+                    out.write(entry.value, 0, entry.value.length);
+                    for (int i = entry.value.length; i < 4; i++)
+                    {
+                        out.write(0);
+                    }
+                }
+            }
+            // No next directory
+            putInt(0);
+
+            for (Entry entry : directory.entries)
+            {
+                if (entry.outOfLine() > 0)
+                {
+                    out.write(entry.value, 0, entry.value.length);
+                    if ((entry.value.length & 1) != 0)
+                    {
+                        out.write(0);
+                    }
+                }
+            }
+            for (Entry entry : directory.entries)
+            {
+                if (entry.directory != null)
+                {
+                    write(entry.directory, out.size());
+                }
+            }
+        }
+
+        private void putShort(int value)
+        {
+            if (bigEndian)
+            {
+                out.write(value >> 8);
+                out.write(value);
+            }
+            else
+            {
+                out.write(value);
+                out.write(value >> 8);
+            }
+        }
+
+        private void putInt(long value)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                out.write((int)(value >> (bigEndian ? 24 - 8 * i : 8 * i)));
+            }
+        }
+    }
+}
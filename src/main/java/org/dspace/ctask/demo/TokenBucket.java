@@ -0,0 +1,112 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+/**
+ * TokenBucket
+ * -----------
+ * A simple rate limiter. Tokens are added at a steady rate up to a fixed capacity,
+ * and callers block in acquire() until enough tokens are available. A request for
+ * more tokens than the capacity is let through once the bucket is full, leaving the
+ * bucket in debt so that later callers wait for it to refill.
+ *
+ * @author Kim Shepherd
+ */
+public class TokenBucket
+{
+    private static final double NANOS_PER_SECOND = 1000000000d;
+
+    private final double capacity;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate Tokens added per second
+     * @param capacity The most tokens the bucket can hold, i.e. the largest burst allowed
+     */
+    public TokenBucket(double rate, double capacity)
+    {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take tokens from the bucket, waiting until they are available
+     *
+     * @param n The number of tokens wanted
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void acquire(double n) throws InterruptedException
+    {
+        while (true)
+        {
+            long wait = tryAcquire(n);
+            if (wait == 0)
+            {
+                return;
+            }
+            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+        }
+    }
+
+    /**
+     * Take tokens from the bucket if they are available now, without waiting
+     *
+     * @param n The number of tokens wanted
+     * @return 0 if the tokens were taken, otherwise how many nanoseconds until they should be available
+     */
+    public synchronized long tryAcquire(double n)
+    {
+        refill();
+        double needed = Math.min(n, capacity);
+        if (tokens >= needed)
+        {
+            tokens -= n;
+            return 0;
+        }
+        return Math.max(1, (long)(((needed - tokens) / rate) * NANOS_PER_SECOND));
+    }
+
+    /**
+     * @return The current refill rate, in tokens per second
+     */
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Change the refill rate, e.g. to back off from a server that is throttling us
+     *
+     * @param rate Tokens added per second
+     */
+    public synchronized void setRate(double rate)
+    {
+        refill();
+        this.rate = rate;
+    }
+
+    /**
+     * Throw away the tokens held, so the next caller waits for one to be added
+     */
+    public synchronized void drain()
+    {
+        refill();
+        tokens = Math.min(tokens, 0);
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + ((now - lastRefill) / NANOS_PER_SECOND) * rate);
+        lastRefill = now;
+    }
+}
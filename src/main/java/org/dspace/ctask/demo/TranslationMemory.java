@@ -0,0 +1,309 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TranslationMemory
+ * -----------------
+ * Remembers every translation made, so the same text is only ever sent to a
+ * translation service once. Translations are keyed by source language, target
+ * language and a SHA-1 hash of the text, and are shared by all translators.
+ *
+ * Translations are appended to a file on disk. Only the position of each
+ * translation in the file is kept in memory, along with the most recently used
+ * translations themselves.
+ *
+ * Configured in [dspace]/config/modules/translator.cfg:
+ *
+ * translate.memory = true
+ * translate.memory.file = /dspace/var/translation.memory
+ * translate.memory.size = 10000
+ *
+ * @author Kim Shepherd
+ */
+public class TranslationMemory
+{
+    private static final String PLUGIN_PREFIX = "translator";
+
+    private static TranslationMemory instance = null;
+    private static boolean initialised = false;
+
+    private static Logger log = Logger.getLogger(TranslationMemory.class);
+
+    private final RandomAccessFile file;
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+    private final Map<String, String> recent;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private TranslationMemory(File path, final int maxRecent) throws IOException
+    {
+        File dir = path.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs())
+        {
+            throw new IOException("Couldn't create directory " + dir);
+        }
+        long complete = path.exists() ? index(path) : 0;
+        file = new RandomAccessFile(path, "rw");
+        if (file.length() > complete)
+        {
+            // A record cut off by a crash; the next record would be appended onto it
+            log.info("Discarding " + (file.length() - complete) + " bytes of an incomplete record in " + path);
+            file.setLength(complete);
+        }
+
+        // An access-ordered LinkedHashMap gives us LRU eviction
+        recent = new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > maxRecent;
+            }
+        };
+    }
+
+    /**
+     * Get the shared translation memory, opening it on first use
+     *
+     * @return The shared translation memory, or null if it is switched off or couldn't be opened
+     */
+    public static synchronized TranslationMemory getInstance()
+    {
+        if (!initialised)
+        {
+            initialised = true;
+            if (ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "translate.memory", true))
+            {
+                String path = ConfigurationManager.getProperty(PLUGIN_PREFIX, "translate.memory.file");
+                if (path == null)
+                {
+                    path = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" +
+                            File.separator + "translation.memory";
+                }
+                int size = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "translate.memory.size", 10000);
+
+                try
+                {
+                    instance = new TranslationMemory(new File(path), Math.max(1, size));
+                    log.debug("Opened translation memory " + path + " with " + instance.offsets.size() + " entries");
+                }
+                catch (IOException e)
+                {
+                    log.info("Couldn't open translation memory " + path + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Look up a previous translation
+     *
+     * @param from The source language
+     * @param to The target language
+     * @param text The text that was translated
+     * @return The translation, or null if the text hasn't been translated before
+     */
+    public synchronized String get(String from, String to, String text)
+    {
+        String key = getKey(from, to, text);
+        String translation = recent.get(key);
+        if (translation == null)
+        {
+            Long offset = offsets.get(key);
+            if (offset != null)
+            {
+                try
+                {
+                    translation = read(offset.longValue());
+                    recent.put(key, translation);
+                }
+                catch (IOException e)
+                {
+                    log.info("Couldn't read translation memory: " + e.getLocalizedMessage());
+                }
+            }
+        }
+
+        if (translation != null)
+        {
+            hits++;
+        }
+        else
+        {
+            misses++;
+        }
+        return translation;
+    }
+
+    /**
+     * Remember a translation
+     *
+     * @param from The source language
+     * @param to The target language
+     * @param text The text that was translated
+     * @param translation The translation
+     */
+    public synchronized void put(String from, String to, String text, String translation)
+    {
+        String key = getKey(from, to, text);
+        try
+        {
+            byte[] record = (key + "\t" + KeyValueLog.escape(translation) + "\n").getBytes("UTF-8");
+            long offset = file.length();
+            file.seek(offset);
+            file.write(record);
+            offsets.put(key, Long.valueOf(offset));
+            recent.put(key, translation);
+        }
+        catch (IOException e)
+        {
+            log.info("Couldn't write translation memory: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return The lookups so far, as {hits, misses}, to be passed to getStatistics() at the end of a run
+     */
+    public synchronized long[] getCounts()
+    {
+        return new long[] {hits, misses};
+    }
+
+    /**
+     * @param start The counts at the start of the run, from getCounts()
+     * @return A short summary of translation memory usage since then, for reports
+     */
+    public synchronized String getStatistics(long[] start)
+    {
+        return "Translation memory: " + (hits - start[0]) + " hits, " + (misses - start[1]) + " misses, " +
+                offsets.size() + " entries";
+    }
+
+    /**
+     * Read the translation from the record starting at the given offset
+     */
+    private String read(long offset) throws IOException
+    {
+        file.seek(offset);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[512];
+        int read;
+        boolean done = false;
+        while (!done && (read = file.read(buffer)) != -1)
+        {
+            int end = 0;
+            while (end < read && buffer[end] != '\n')
+            {
+                end++;
+            }
+            line.write(buffer, 0, end);
+            done = (end < read);
+        }
+        String record = line.toString("UTF-8");
+        return KeyValueLog.unescape(record.substring(record.indexOf('\t') + 1));
+    }
+
+    /**
+     * Find the offset of every complete record in an existing memory file
+     *
+     * @return The length of the file up to the end of its last complete record
+     */
+    private long index(File path) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(path));
+        try
+        {
+            ByteArrayOutputStream key = new ByteArrayOutputStream(64);
+            long offset = 0;
+            long start = 0;
+            String recordKey = null;
+            boolean inKey = true;
+            int b;
+            while ((b = in.read()) != -1)
+            {
+                offset++;
+                if (b == '\n')
+                {
+                    // Only a record ending in a newline is complete
+                    if (recordKey != null)
+                    {
+                        // Later records for the same key replace earlier ones
+                        offsets.put(recordKey, Long.valueOf(start));
+                    }
+                    recordKey = null;
+                    inKey = true;
+                    start = offset;
+                    key.reset();
+                }
+                else if (inKey)
+                {
+                    if (b == '\t')
+                    {
+                        recordKey = key.toString("UTF-8");
+                        inKey = false;
+                    }
+                    else
+                    {
+                        key.write(b);
+                    }
+                }
+            }
+            return start;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static String getKey(String from, String to, String text)
+    {
+        return from + "|" + to + "|" + hash(text);
+    }
+
+    private static String hash(String text)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 not available");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 not available");
+        }
+    }
+}
@@ -8,11 +8,21 @@
 package org.dspace.ctask.demo;
 
 import org.apache.log4j.Logger;
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
+import org.dspace.content.DCValue;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * URIGenerator
@@ -22,50 +32,248 @@ import org.dspace.curate.Curator;
  * Useful if you've changed handle prefixes recently and want to
  * update all your existing dc.identifier.uri metadata.
  *
+ * When run on a collection or community, the current URIs of every item are
+ * read with one streamed query (see ItemValueCursor) and compared with the
+ * new ones, so only items whose URI is wrong are loaded and updated. Updates
+ * are committed every urigenerator.commit.interval items, and progress is
+ * reported every urigenerator.progress.interval items. Set
+ * urigenerator.bulk = false in [dspace]/config/modules/urigenerator.cfg to
+ * load and check one item at a time instead.
+ *
  * @author Kim Shepherd
  */
 
-public class URIGenerator extends AbstractCurationTask
+@Distributive
+public class URIGenerator extends AbstractCurationTask implements ItemCurationTask
 {
     private int status = Curator.CURATE_UNSET;
     private String result = null;
 
+    private static final String PLUGIN_PREFIX = "urigenerator";
+
+    private static final ItemMetadataIndex.Field URI_FIELD = new ItemMetadataIndex.Field("dc", "identifier", "uri");
+
     private static Logger log = Logger.getLogger(URIGenerator.class);
 
+    // The handle prefix, read once from [dspace]/config/dspace.cfg
+    private String prefix = null;
+
+    private boolean bulk = true;
+    private int commitInterval = 1000;
+    private int progressInterval = 10000;
 
     @Override
-    public int perform(DSpaceObject dso)
+    public void init(Curator curator, String taskId) throws IOException
     {
-        if(dso instanceof Item)
+        super.init(curator, taskId);
+
+        prefix = ConfigurationManager.getProperty("handle.canonical.prefix");
+        if(prefix == null)
         {
-            Item item = (Item) dso;
+            // As HandleManager does when no prefix is configured
+            prefix = "http://hdl.handle.net/";
+        }
+        bulk = ConfigurationManager.getBooleanProperty(PLUGIN_PREFIX, "urigenerator.bulk", true);
+        commitInterval = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "urigenerator.commit.interval", 1000);
+        progressInterval = ConfigurationManager.getIntProperty(PLUGIN_PREFIX, "urigenerator.progress.interval", 10000);
+    }
+
+    @Override
+    public int perform(DSpaceObject dso) throws IOException
+    {
+        if(bulk && (dso instanceof Collection || dso instanceof Community))
+        {
+            return generate(dso);
+        }
+
+        distribute(dso);
+        return status;
+    }
+
+    @Override
+    protected void performItem(Item item)
+    {
+        status = updateItem(item);
+        try {
+            item.decache();
+        }
+        catch(SQLException e)
+        {
+            log.info("Couldn't decache " + item.getHandle() + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    public void startRun()
+    {
+    }
+
+    public int curateItem(Item item, ItemMetadataIndex index)
+    {
+        return updateItem(item);
+    }
 
-            // Get new handle prefix from [dspace]/config/dspace.cfg
-            String newUri = ConfigurationManager.getProperty("handle.canonical.prefix");
-            newUri += item.getHandle();
+    public boolean changesMetadata()
+    {
+        return true;
+    }
+
+    public void finishRun()
+    {
+    }
 
-            // Clear existing dc.identifer.uri fields (all languages)
-            item.clearMetadata("dc", "identifier", "uri", Item.ANY);
+    /**
+     * Generate the URI of one item
+     *
+     * @param item The item
+     * @return The curation status
+     */
+    private int updateItem(Item item)
+    {
+        int status;
+        String newUri = prefix + item.getHandle();
 
-            // Add the new
-            item.addMetadata("dc","identifier","uri", null, newUri);
+        // Clear existing dc.identifer.uri fields (all languages) and add the new,
+        // which leaves the item alone if it already has just the new URI
+        MetadataWriteBuffer writes = new MetadataWriteBuffer(null, 0);
+        writes.clear(item, URI_FIELD);
+        writes.add(item, URI_FIELD, null, newUri);
 
-            try {
-                item.update();
-                item.decache();
-                status = Curator.CURATE_SUCCESS;
+        try {
+            if(writes.flush(item)) {
                 result = "Generated URI for " + item.getHandle() + ": " + newUri;
             }
-            catch(Exception e)
+            else {
+                result = "URI for " + item.getHandle() + " is already " + newUri;
+            }
+            status = Curator.CURATE_SUCCESS;
+        }
+        catch(Exception e)
+        {
+            status = Curator.CURATE_ERROR;
+            result = "Curation task failed with error: " + e.getLocalizedMessage();
+            log.info(result);
+        }
+
+        setResult(result);
+        report(result);
+        return status;
+    }
+
+    /**
+     * Generate the URIs of every item in a collection or community, loading only
+     * the items whose URI has changed. The cursor has a context of its own, since
+     * committing the updates would end its query.
+     */
+    private int generate(DSpaceObject container)
+    {
+        Context reading = null;
+        Context writing = null;
+        ItemValueCursor cursor = null;
+        int checked = 0;
+        int failed = 0;
+        long start = System.currentTimeMillis();
+        try {
+            reading = new Context();
+            writing = new Context();
+            // As the command line curator does when run without an e-person, and as
+            // ParallelItemRunner's workers do; Item.update() would otherwise need WRITE
+            writing.turnOffAuthorisationSystem();
+            cursor = new ItemValueCursor(reading, container, URI_FIELD);
+            MetadataWriteBuffer writes = new MetadataWriteBuffer(writing, commitInterval);
+            // Items updated since the last commit, lost if the writing context has to be aborted
+            List<String> uncommitted = new ArrayList<String>();
+
+            while(cursor.next())
             {
-                status = Curator.CURATE_ERROR;
-                log.info("Curation task failed with error: " + e.getLocalizedMessage());
+                checked++;
+                String handle = cursor.getHandle();
+                if(handle != null && !isOnly(cursor.getValues(), prefix + handle))
+                {
+                    Item item = Item.find(writing, cursor.getItemID());
+                    if(item == null) {
+                        // Deleted since the query started
+                        continue;
+                    }
+                    writes.clear(item, URI_FIELD);
+                    writes.add(item, URI_FIELD, null, prefix + handle);
+                    try {
+                        if(writes.flush(item)) {
+                            report("Generated URI for " + handle + ": " + prefix + handle);
+                            uncommitted.add(handle);
+                            if(writes.getUncommitted() == 0) {
+                                uncommitted.clear();
+                            }
+                        }
+                    }
+                    catch(Exception e) {
+                        log.info("Couldn't update " + handle + ": " + e.getLocalizedMessage());
+                        report("Couldn't update " + handle + ": " + e.getLocalizedMessage());
+
+                        // The writing context may be unusable now, and what it hasn't committed
+                        // is lost with it, as when a ParallelItemRunner worker rolls back
+                        writing.abort();
+                        writing = null;
+                        writing = new Context();
+                        writing.turnOffAuthorisationSystem();
+                        writes.reopen(writing);
+                        for(String lost : uncommitted) {
+                            report("Couldn't update " + lost + ": rolled back with " + handle);
+                        }
+                        failed += uncommitted.size() + 1;
+                        uncommitted.clear();
+                    }
+                    item.decache();
+                }
+
+                if(progressInterval > 0 && checked % progressInterval == 0)
+                {
+                    report(getProgress(checked, start) + ". " + writes.getStatistics());
+                }
             }
+            writes.commit();
+            writing.complete();
+            writing = null;
 
-            setResult(result);
-            report(result);
+            result = getProgress(checked, start) + ". " + writes.getStatistics() +
+                    ((failed > 0) ? ", " + failed + " failed" : "");
+            status = (failed > 0) ? Curator.CURATE_FAIL : Curator.CURATE_SUCCESS;
+        }
+        catch(SQLException e) {
+            status = Curator.CURATE_ERROR;
+            result = "URI generation for " + container.getHandle() + " failed after " + checked + " items: " +
+                    e.getLocalizedMessage();
+            log.info(result);
+        }
+        finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+            if(reading != null) {
+                reading.abort();
+            }
+            if(writing != null) {
+                // Anything committed before the failure stays
+                writing.abort();
+            }
         }
 
+        setResult(result);
+        report(result);
         return status;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return Whether the values are just the given URI, with no language, as performItem() would leave them
+     */
+    private static boolean isOnly(List<DCValue> values, String uri)
+    {
+        return values.size() == 1 && values.get(0).language == null && uri.equals(values.get(0).value);
+    }
+
+    private static String getProgress(int checked, long start)
+    {
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        return String.format("Checked %d items in %.1f s (%.1f items/s)", checked, seconds,
+                (seconds > 0) ? checked / seconds : 0.0);
+    }
+}
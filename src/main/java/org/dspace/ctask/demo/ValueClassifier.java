@@ -0,0 +1,65 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.demo;
+
+/**
+ * ValueClassifier
+ * ---------------
+ * Tells apart metadata values that are text in some language from values that
+ * would come back unchanged from a translation service: numbers, dates, codes,
+ * identifiers, email addresses and links.
+ *
+ * @author Kim Shepherd
+ */
+public class ValueClassifier
+{
+    /**
+     * @param value A metadata value
+     * @return Whether the value is text worth translating
+     */
+    public static boolean isLinguistic(String value)
+    {
+        String text = value.trim();
+
+        // Fewer than two letters: numbers, dates, page ranges, punctuation...
+        int letters = 0;
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (Character.isLetter(c))
+            {
+                letters++;
+            }
+            else if (Character.isWhitespace(c))
+            {
+                space = true;
+            }
+        }
+        if (letters < 2)
+        {
+            return false;
+        }
+
+        // A single token holding anything but letters and hyphens is a code, link or
+        // identifier, e.g. ISBN-0-12-345678-9, doi:10.1000/182, http://example.org, ABC123
+        if (!space)
+        {
+            for (int i = 0; i < text.length(); i++)
+            {
+                char c = text.charAt(i);
+                if (!Character.isLetter(c) && c != '-' && c != '\'')
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+}